@@ -1,10 +1,15 @@
 package dev.aclam.basedata;
 
-import java.util.Collection;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import dev.aclam.basemodel.BaseModel;
 import io.reactivex.Completable;
@@ -13,44 +18,67 @@ import io.reactivex.annotations.NonNull;
 import io.reactivex.annotations.Nullable;
 
 /**
- * In-Memory cache implementation of {@link BaseDataSource} of type {@link M}
+ * In-Memory cache implementation of {@link BaseDataSource} of type {@link M}, safe for
+ * concurrent writers. Lookups and compare-and-update take no lock; {@link #getAll()} returns the
+ * {@link M}s in the order they were first cached.
  */
 public abstract class BaseCacheDataSource<M extends BaseModel> implements BaseDataSource<M> {
 
+  private static final Comparator<Entry<?>> ENTRY_ORDER =
+      (a, b) -> Long.compare(a.mOrder, b.mOrder);
+
+  @NonNull
+  private final ConcurrentMap<String, Entry<M>> mCache;
+
+  /**
+   * Source of {@link Entry} insertion orders
+   */
   @NonNull
-  private final Map<String, M> mCache;
+  private final AtomicLong mOrder;
+
+  /**
+   * Snapshot mapped by {@link #loadSnapshotLazily(File, SnapshotCodec, long)}, decoded into the
+   * cache on first access
+   */
+  @Nullable
+  private volatile CacheSnapshot<M> mPendingSnapshot;
 
   protected BaseCacheDataSource() {
-    mCache = new LinkedHashMap<>();
+    mCache = new ConcurrentHashMap<>();
+    mOrder = new AtomicLong();
   }
 
   @Override
   public Completable add(M m) {
-    return Completable.fromAction(() -> mCache.put(m.getUuid(), m));
+    return Completable.fromAction(() -> {
+      loadPendingSnapshot();
+      put(m);
+    });
   }
 
   @Override
   public Completable add(List<M> vals) {
     return Completable.fromAction(() -> {
+      loadPendingSnapshot();
       for (M m : vals){
-        mCache.put(m.getUuid(),m);
+        put(m);
       }
     });
   }
 
   @Override
   public Flowable<List<M>> getAll() {
-    Collection<M> vals = mCache.values();
-    if (vals.isEmpty()) {
-      return Flowable.empty();
+    @Nullable List<M> vals = getAllIfPresent();
+    if (vals != null) {
+      return Flowable.just(vals);
     } else {
-      return Flowable.just(new LinkedList<>(vals));
+      return Flowable.empty();
     }
   }
 
   @Override
   public Flowable<M> get(String uuid) {
-    @Nullable M m = mCache.get(uuid);
+    @Nullable M m = getIfPresent(uuid);
     if (m != null) {
       return Flowable.just(m);
     } else {
@@ -58,23 +86,208 @@ public abstract class BaseCacheDataSource<M extends BaseModel> implements BaseDa
     }
   }
 
+  @Nullable
+  @Override
+  public List<M> getAllIfPresent() {
+    loadPendingSnapshot();
+    List<M> vals = values();
+    return vals.isEmpty() ? null : vals;
+  }
+
+  @Nullable
+  @Override
+  public M getIfPresent(String uuid) {
+    loadPendingSnapshot();
+    @Nullable Entry<M> entry = mCache.get(uuid);
+    return entry != null ? entry.mItem : null;
+  }
+
   @Override
   public Completable update(M m) {
-    return Completable.fromAction(() -> mCache.put(m.getUuid(), m));
+    return Completable.fromAction(() -> {
+      loadPendingSnapshot();
+      put(m);
+    });
+  }
+
+  @Override
+  public Completable compareAndUpdate(@Nullable M expected, M m) {
+    return Completable.fromAction(() -> {
+      if (!BaseModel.isNewerVersion(m, expected)) {
+        throw new IllegalArgumentException("Update of " + m.getUuid() + " is not a newer version");
+      }
+      loadPendingSnapshot();
+      while (true) {
+        @Nullable Entry<M> current = mCache.get(m.getUuid());
+        if (!BaseModel.isSameVersion(current != null ? current.mItem : null, expected)) {
+          throw new ConcurrentModificationException("Stale update of " + m.getUuid());
+        }
+        boolean replaced = current == null
+            ? mCache.putIfAbsent(m.getUuid(), new Entry<>(mOrder.getAndIncrement(), m)) == null
+            : mCache.replace(m.getUuid(), current, new Entry<>(current.mOrder, m));
+        if (replaced) {
+          return;
+        }
+      }
+    });
   }
 
   @Override
   public Completable remove(M m) {
-    return Completable.fromAction(() -> mCache.remove(m.getUuid()));
+    return Completable.fromAction(() -> {
+      loadPendingSnapshot();
+      mCache.remove(m.getUuid());
+    });
   }
 
+  /**
+   * Clears the cache and discards a pending snapshot, waiting for a snapshot being decoded so it
+   * is not applied afterwards
+   */
   @Override
   public Completable removeAll() {
-    return Completable.fromAction(mCache::clear);
+    return Completable.fromAction(() -> {
+      synchronized (this) {
+        mPendingSnapshot = null;
+        mCache.clear();
+      }
+    });
   }
 
   @Override
   public Completable refresh() {
     return removeAll();
   }
+
+  /**
+   * Dumps the cached {@link M}s to a snapshot file, e.g. on shutdown
+   * @param file the snapshot file, replaced atomically
+   * @param codec a {@link SnapshotCodec} for {@link M}
+   * @return a {@link Completable} emission
+   */
+  public Completable saveSnapshot(@NonNull File file, @NonNull SnapshotCodec<M> codec) {
+    return Completable.fromAction(() -> {
+      loadPendingSnapshot();
+      CacheSnapshot.write(file, values(), codec);
+    });
+  }
+
+  /**
+   * Dumps the cached {@link M}s to a snapshot file on a schedule, until disposed
+   * @param file the snapshot file, replaced atomically
+   * @param codec a {@link SnapshotCodec} for {@link M}
+   * @param period the time between snapshots
+   * @param unit the {@link TimeUnit} of the period
+   * @return a {@link Completable} that never completes unless a snapshot fails
+   */
+  public Completable saveSnapshotPeriodically(@NonNull File file, @NonNull SnapshotCodec<M> codec,
+                                              long period, @NonNull TimeUnit unit) {
+    return Flowable.interval(period, unit)
+        .onBackpressureDrop()
+        .concatMapCompletable(tick -> saveSnapshot(file, codec));
+  }
+
+  /**
+   * Memory-maps a snapshot file and bulk loads it into the cache. Entries already cached are
+   * kept; a missing, stale or corrupt snapshot is discarded as a whole and leaves the cache
+   * untouched.
+   * @param file the snapshot file
+   * @param codec a {@link SnapshotCodec} for {@link M}
+   * @param maxAgeMillis maximum age of the snapshot, older snapshots are discarded
+   * @return a {@link Completable} emission
+   */
+  public Completable loadSnapshot(@NonNull File file, @NonNull SnapshotCodec<M> codec,
+                                  long maxAgeMillis) {
+    return Completable.fromAction(() -> load(CacheSnapshot.open(file, codec, maxAgeMillis)));
+  }
+
+  /**
+   * Memory-maps and validates a snapshot file, deferring decoding until the cache is first
+   * accessed
+   * @param file the snapshot file
+   * @param codec a {@link SnapshotCodec} for {@link M}
+   * @param maxAgeMillis maximum age of the snapshot, older snapshots are discarded
+   * @return a {@link Completable} emission
+   */
+  public Completable loadSnapshotLazily(@NonNull File file, @NonNull SnapshotCodec<M> codec,
+                                        long maxAgeMillis) {
+    return Completable.fromAction(() ->
+        mPendingSnapshot = CacheSnapshot.open(file, codec, maxAgeMillis));
+  }
+
+  private void loadPendingSnapshot() {
+    if (mPendingSnapshot == null) {
+      return;
+    }
+    synchronized (this) {
+      @Nullable CacheSnapshot<M> snapshot = mPendingSnapshot;
+      if (snapshot != null) {
+        try {
+          load(snapshot);
+        } finally {
+          mPendingSnapshot = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Decodes the whole snapshot before touching the cache, so a corrupt snapshot is discarded
+   * rather than partially applied
+   */
+  private void load(@Nullable CacheSnapshot<M> snapshot) {
+    if (snapshot == null) {
+      return;
+    }
+    List<M> ms;
+    try {
+      ms = snapshot.decode();
+    } catch (IOException e) {
+      return;
+    }
+    synchronized (this) {
+      for (M m : ms) {
+        mCache.putIfAbsent(m.getUuid(), new Entry<>(mOrder.getAndIncrement(), m));
+      }
+    }
+  }
+
+  /**
+   * Caches the {@link M}, keeping the insertion order of the {@link M} it replaces
+   */
+  private void put(@NonNull M m) {
+    mCache.compute(m.getUuid(), (uuid, current) ->
+        new Entry<>(current != null ? current.mOrder : mOrder.getAndIncrement(), m));
+  }
+
+  /**
+   * @return the cached {@link M}s in insertion order
+   */
+  @NonNull
+  private List<M> values() {
+    List<Entry<M>> entries = new ArrayList<>(mCache.values());
+    entries.sort(ENTRY_ORDER);
+    List<M> vals = new ArrayList<>(entries.size());
+    for (Entry<M> entry : entries) {
+      vals.add(entry.mItem);
+    }
+    return vals;
+  }
+
+  /**
+   * A cached {@link M} with the order it was first cached in; compared by identity, so a
+   * compare-and-update only replaces the exact entry it read
+   */
+  private static final class Entry<M> {
+
+    private final long mOrder;
+
+    @NonNull
+    private final M mItem;
+
+    Entry(long order, @NonNull M item) {
+      mOrder = order;
+      mItem = item;
+    }
+  }
 }
@@ -1,11 +1,13 @@
 package dev.aclam.basedata;
 
 
+import java.util.ConcurrentModificationException;
 import java.util.List;
 
 import dev.aclam.basemodel.BaseModel;
 import io.reactivex.Completable;
 import io.reactivex.Flowable;
+import io.reactivex.annotations.Nullable;
 
 /**
  * Base class for data source
@@ -39,6 +41,25 @@ public interface BaseDataSource<M extends BaseModel> {
    */
   Flowable<M> get(String uuid);
 
+  /**
+   * Gets all the {@link M}s synchronously, if they are available in memory
+   * @return a list of {@link M}s, or null if they cannot be returned without subscribing
+   */
+  @Nullable
+  default List<M> getAllIfPresent() {
+    return null;
+  }
+
+  /**
+   * Gets a single {@link M} by id synchronously, if it is available in memory
+   * @param uuid a {@link M}'s uuid
+   * @return a {@link M}, or null if it cannot be returned without subscribing
+   */
+  @Nullable
+  default M getIfPresent(String uuid) {
+    return null;
+  }
+
   /**
    * Updates a {@link M}
    * @param item a {@link M}
@@ -46,6 +67,22 @@ public interface BaseDataSource<M extends BaseModel> {
    */
   Completable update(M item);
 
+  /**
+   * Updates a {@link M} only if the stored {@link M} is still the expected version, see
+   * {@link BaseModel#isSameVersion(BaseModel, BaseModel)}. The updated {@link M} must be a new
+   * instance with a greater timestamp when the {@link M} is versioned, see
+   * {@link BaseModel#isNewerVersion(BaseModel, BaseModel)}. Sources that cannot check versions
+   * update unconditionally.
+   * @param expected the {@link M} the update is based on, or null if none was stored
+   * @param item the updated {@link M}
+   * @return a {@link Completable} emission, failing with a
+   * {@link ConcurrentModificationException} when the stored {@link M} has changed, or an
+   * {@link IllegalArgumentException} when the item is not a newer version of expected
+   */
+  default Completable compareAndUpdate(@Nullable M expected, M item) {
+    return update(item);
+  }
+
   /**
    * Removes a {@link M}
    * @param item a {@link M}
@@ -53,6 +90,16 @@ public interface BaseDataSource<M extends BaseModel> {
    */
   Completable remove(M item);
 
+  /**
+   * Evicts the in-memory copy of a {@link M}, leaving persistent storage untouched; defaults to
+   * {@link #remove(BaseModel)} for data sources that only keep {@link M}s in memory
+   * @param item a {@link M}
+   * @return a {@link Completable} emission
+   */
+  default Completable evict(M item) {
+    return remove(item);
+  }
+
   /**
    * Removes all the {@link M}s
    * @return a {@link Completable} emission
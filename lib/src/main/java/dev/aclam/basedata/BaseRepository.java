@@ -1,6 +1,9 @@
 package dev.aclam.basedata;
 
+import java.util.ConcurrentModificationException;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import dev.aclam.annotation.Cache;
 import dev.aclam.annotation.Local;
@@ -8,13 +11,19 @@ import dev.aclam.annotation.Remote;
 import dev.aclam.basemodel.BaseModel;
 import io.reactivex.Completable;
 import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
 import io.reactivex.annotations.NonNull;
+import io.reactivex.annotations.Nullable;
+import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
 
 /**
  * Repository, a facade of {@link BaseDataSource}s
  */
 public abstract class BaseRepository<M extends BaseModel> implements BaseDataSource<M> {
 
+  private static final long DEFAULT_MAX_UPDATE_RETRIES = 16;
+
   @NonNull
   private final BaseDataSource<M> mCache;
 
@@ -47,10 +56,74 @@ public abstract class BaseRepository<M extends BaseModel> implements BaseDataSou
     return mCache.add(ms).andThen(mLocal.add(ms)).andThen(mRemote.add(ms));
   }
 
+  /**
+   * Imports an unbounded stream of {@link M}s into every tier, see
+   * {@link #ingest(Flowable, int, int, Scheduler)}, writing on {@link Schedulers#io()}
+   */
+  public Flowable<BulkImportProgress> ingest(@NonNull Flowable<M> ms, int batchSize,
+                                             int maxInFlightBatches) {
+    return ingest(ms, batchSize, maxInFlightBatches, Schedulers.io());
+  }
+
+  /**
+   * Imports an unbounded stream of {@link M}s into every tier. The stream is chunked into
+   * batches and the cache, local and remote tiers are written in parallel, each tier writing its
+   * batches one at a time in stream order, so an {@link M} repeated in the stream ends up with
+   * its last version in every tier. Tiers may run ahead of each other by at most
+   * {@code maxInFlightBatches} batches, and batches are only requested from upstream as the
+   * slowest tier catches up, bounding the memory held by the import.
+   * @param ms the {@link M}s to import
+   * @param batchSize the number of {@link M}s written per tier call
+   * @param maxInFlightBatches the number of batches buffered ahead of the slowest tier
+   * @param scheduler the {@link Scheduler} the tier writes run on
+   * @return a {@link Flowable} of {@link BulkImportProgress}, one per batch written to every tier
+   */
+  public Flowable<BulkImportProgress> ingest(@NonNull Flowable<M> ms, int batchSize,
+                                             int maxInFlightBatches,
+                                             @NonNull Scheduler scheduler) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+    }
+    if (maxInFlightBatches <= 0) {
+      throw new IllegalArgumentException(
+          "maxInFlightBatches must be positive: " + maxInFlightBatches);
+    }
+    return Flowable.defer(() -> {
+      long start = System.nanoTime();
+      AtomicLong count = new AtomicLong();
+      AtomicLong batches = new AtomicLong();
+      return ms.buffer(batchSize)
+          .publish(shared -> Flowable.zip(
+              ingest(shared, mCache, maxInFlightBatches, scheduler),
+              ingest(shared, mLocal, maxInFlightBatches, scheduler),
+              ingest(shared, mRemote, maxInFlightBatches, scheduler),
+              (cached, local, remote) -> cached), maxInFlightBatches)
+          .map(size -> new BulkImportProgress(count.addAndGet(size), batches.incrementAndGet(),
+              System.nanoTime() - start));
+    });
+  }
+
+  /**
+   * Writes batches to a single tier in order, one batch at a time
+   * @return a {@link Flowable} of the written batch sizes
+   */
+  private Flowable<Integer> ingest(@NonNull Flowable<List<M>> batches,
+                                   @NonNull BaseDataSource<M> tier,
+                                   int maxInFlightBatches,
+                                   @NonNull Scheduler scheduler) {
+    return batches.concatMapSingle(batch -> tier.add(batch)
+        .subscribeOn(scheduler)
+        .toSingleDefault(batch.size()), maxInFlightBatches);
+  }
+
   @Override
   public Flowable<List<M>> getAll() {
     if (mCacheIsDirty) {
       return getAndCacheRemoteModels();
+    }
+    @Nullable List<M> cached = mCache.getAllIfPresent();
+    if (cached != null) {
+      return Flowable.just(cached);
     } else {
       return mCache.getAll().switchIfEmpty(
           Flowable.concat(getAndCacheLocalModels(), getAndCacheRemoteModels())
@@ -65,6 +138,10 @@ public abstract class BaseRepository<M extends BaseModel> implements BaseDataSou
   public Flowable<M> get(String uid) {
     if (mCacheIsDirty) {
       return getAndCacheRemoteModel(uid);
+    }
+    @Nullable M m = mCache.getIfPresent(uid);
+    if (m != null) {
+      return Flowable.just(m);
     } else {
       return mCache.get(uid).switchIfEmpty(
           Flowable.concat(getAndCacheLocalModel(uid), getAndCacheRemoteModel(uid))
@@ -74,16 +151,114 @@ public abstract class BaseRepository<M extends BaseModel> implements BaseDataSou
     }
   }
 
+  /**
+   * Gets all the cached {@link M}s synchronously, callers fall back to {@link #getAll()} on null
+   */
+  @Nullable
+  @Override
+  public List<M> getAllIfPresent() {
+    return mCacheIsDirty ? null : mCache.getAllIfPresent();
+  }
+
+  /**
+   * Gets a cached {@link M} synchronously without allocating, callers fall back to
+   * {@link #get(String)} on null
+   */
+  @Nullable
+  @Override
+  public M getIfPresent(String uid) {
+    return mCacheIsDirty ? null : mCache.getIfPresent(uid);
+  }
+
+  /**
+   * @return whether lookups bypass the cache until the remote next answers, as after
+   * {@link #refresh()}
+   */
+  protected final boolean isCacheDirty() {
+    return mCacheIsDirty;
+  }
+
   @Override
   public Completable update(M m) {
     return mCache.update(m).andThen(mLocal.update(m)).andThen(mRemote.update(m));
   }
 
+  /**
+   * Updates the {@link M} in every tier if it is still the expected version. When the {@link M}
+   * is cached, the cache tier rejects in-process conflicts first; a cold cache has nothing to
+   * conflict with and takes the {@link M} as a plain update. The remote tier then arbitrates; if
+   * it rejects or fails, the cached {@link M} is invalidated so the next read comes from a lower
+   * tier. The local tier mirrors the {@link M} once remote has accepted it.
+   */
+  @Override
+  public Completable compareAndUpdate(@Nullable M expected, M m) {
+    return Completable.defer(() -> {
+      if (!BaseModel.isNewerVersion(m, expected)) {
+        return Completable.error(new IllegalArgumentException(
+            "Update of " + m.getUuid() + " is not a newer version"));
+      }
+      Completable cache = mCache.getIfPresent(m.getUuid()) != null
+          ? mCache.compareAndUpdate(expected, m)
+          : mCache.update(m);
+      return cache
+          .andThen(Completable.defer(() -> mRemote.compareAndUpdate(expected, m))
+              .onErrorResumeNext(e -> mCache.remove(m)
+                  .onErrorComplete()
+                  .andThen(Completable.error(e))))
+          .andThen(Completable.defer(() -> mLocal.update(m)));
+    });
+  }
+
+  /**
+   * Atomically updates a {@link M}, see {@link #updateAtomically(String, Function, long)}
+   */
+  public Flowable<M> updateAtomically(String uid, @NonNull Function<M, M> fn) {
+    return updateAtomically(uid, fn, DEFAULT_MAX_UPDATE_RETRIES);
+  }
+
+  /**
+   * Atomically updates a {@link M} without locking; reads the current {@link M}, applies the
+   * function and {@link #compareAndUpdate(BaseModel, BaseModel)}s the result. When a concurrent
+   * update wins, retries from the cache if the conflict was in-process, or from a fresh read of
+   * the remote tier if the remote rejected the update and the cached {@link M} was invalidated.
+   * @param uid a {@link M}'s uuid
+   * @param fn computes the updated {@link M} from the current one, may be called once per
+   *           attempt; must return a new instance, with a greater timestamp if {@link M} is
+   *           versioned, and must not mutate the current {@link M}
+   * @param maxRetries the number of retries before failing
+   * @return a {@link Flowable} of the updated {@link M}, failing with a
+   * {@link ConcurrentModificationException} when retries are exhausted
+   */
+  public Flowable<M> updateAtomically(String uid, @NonNull Function<M, M> fn, long maxRetries) {
+    return Flowable.defer(() -> {
+      AtomicBoolean conflicted = new AtomicBoolean();
+      return Flowable.defer(() -> {
+        Flowable<M> current = conflicted.get() && mCache.getIfPresent(uid) == null
+            ? getAndCacheRemoteModel(uid)
+            : get(uid);
+        return current.take(1).flatMap(expected -> {
+          M m = fn.apply(expected);
+          return compareAndUpdate(expected, m).andThen(Flowable.just(m));
+        });
+      })
+          .doOnError(e -> conflicted.set(true))
+          .retry(maxRetries, e -> e instanceof ConcurrentModificationException);
+    });
+  }
+
   @Override
   public Completable remove(M m) {
     return mCache.remove(m).andThen(mLocal.remove(m)).andThen(mRemote.remove(m));
   }
 
+  /**
+   * Evicts the {@link M} from the cache only
+   */
+  @Override
+  public Completable evict(M m) {
+    return mCache.remove(m);
+  }
+
   @Override
   public Completable removeAll() {
     return mCache.removeAll().andThen(mLocal.removeAll()).andThen(mRemote.removeAll());
@@ -0,0 +1,64 @@
+package dev.aclam.basedata;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a bulk import into a {@link BaseRepository}, emitted after every batch
+ */
+public final class BulkImportProgress {
+
+  private final long mCount;
+
+  private final long mBatches;
+
+  private final long mElapsedNanos;
+
+  BulkImportProgress(long count, long batches, long elapsedNanos) {
+    mCount = count;
+    mBatches = batches;
+    mElapsedNanos = elapsedNanos;
+  }
+
+  /**
+   * Number of items written to every tier so far
+   * @return the imported item count
+   */
+  public long getCount() {
+    return mCount;
+  }
+
+  /**
+   * Number of batches written to every tier so far
+   * @return the imported batch count
+   */
+  public long getBatches() {
+    return mBatches;
+  }
+
+  /**
+   * Time since the import started
+   * @return the elapsed time in nanoseconds
+   */
+  public long getElapsedNanos() {
+    return mElapsedNanos;
+  }
+
+  /**
+   * Average import rate since the import started
+   * @return imported items per second
+   */
+  public double getThroughput() {
+    if (mElapsedNanos <= 0) {
+      return 0;
+    }
+    return mCount * (double) TimeUnit.SECONDS.toNanos(1) / mElapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "BulkImportProgress{count=" + mCount
+        + ", batches=" + mBatches
+        + ", elapsedNanos=" + mElapsedNanos
+        + ", throughput=" + getThroughput() + "}";
+  }
+}
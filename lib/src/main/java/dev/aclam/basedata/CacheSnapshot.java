@@ -0,0 +1,180 @@
+package dev.aclam.basedata;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import dev.aclam.basemodel.BaseModel;
+import io.reactivex.annotations.NonNull;
+import io.reactivex.annotations.Nullable;
+
+/**
+ * Memory-mapped, point in time snapshot of a {@link BaseCacheDataSource}.
+ * <p>
+ * Layout: magic, format version, creation timestamp, entry count, payload length and a CRC32 of
+ * the payload, followed by one length-prefixed record per {@link M} as produced by its
+ * {@link SnapshotCodec}.
+ */
+final class CacheSnapshot<M extends BaseModel> {
+
+  private static final int MAGIC = 0x434C414D;
+
+  private static final int VERSION = 2;
+
+  private static final int PAYLOAD_LENGTH_OFFSET = 4 + 4 + 8 + 4;
+
+  private static final int HEADER_SIZE = PAYLOAD_LENGTH_OFFSET + 8 + 8;
+
+  @NonNull
+  private final ByteBuffer mPayload;
+
+  @NonNull
+  private final SnapshotCodec<M> mCodec;
+
+  private final int mCount;
+
+  private final long mChecksum;
+
+  private CacheSnapshot(@NonNull ByteBuffer payload, @NonNull SnapshotCodec<M> codec, int count,
+                        long checksum) {
+    mPayload = payload;
+    mCodec = codec;
+    mCount = count;
+    mChecksum = checksum;
+  }
+
+  /**
+   * Writes the {@link M}s to the file, replacing any previous snapshot atomically
+   * @param file the snapshot file
+   * @param items the {@link M}s to snapshot
+   * @param codec a {@link SnapshotCodec} for {@link M}
+   * @throws IOException when the snapshot cannot be written
+   */
+  static <M extends BaseModel> void write(@NonNull File file,
+                                          @NonNull Collection<M> items,
+                                          @NonNull SnapshotCodec<M> codec) throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    File temp = File.createTempFile(file.getName(), ".tmp", parent);
+    try {
+      CRC32 crc = new CRC32();
+      try (FileOutputStream stream = new FileOutputStream(temp)) {
+        stream.write(new byte[HEADER_SIZE]);
+        DataOutputStream out = new DataOutputStream(
+            new CheckedOutputStream(new BufferedOutputStream(stream), crc));
+        for (M m : items) {
+          byte[] bytes = codec.encode(m);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+        out.flush();
+      }
+      try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(items.size());
+        out.writeLong(out.length() - HEADER_SIZE);
+        out.writeLong(crc.getValue());
+      }
+      Files.move(temp.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp.toPath());
+    }
+  }
+
+  /**
+   * Maps a snapshot file and validates its header; the payload is neither read nor decoded until
+   * {@link #decode()} is called
+   * @param file the snapshot file
+   * @param codec a {@link SnapshotCodec} for {@link M}
+   * @param maxAgeMillis maximum age of the snapshot, older snapshots are discarded
+   * @return the {@link CacheSnapshot}, or null if the file is missing, too large to map, stale,
+   * dated in the future or has an invalid header
+   * @throws IOException when the snapshot cannot be read
+   */
+  @Nullable
+  static <M extends BaseModel> CacheSnapshot<M> open(@NonNull File file,
+                                                     @NonNull SnapshotCodec<M> codec,
+                                                     long maxAgeMillis) throws IOException {
+    if (!file.isFile() || file.length() < HEADER_SIZE || file.length() > Integer.MAX_VALUE) {
+      return null;
+    }
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+        return null;
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      return null;
+    }
+    long createdAt = buffer.getLong();
+    long now = System.currentTimeMillis();
+    if (createdAt > now || now - createdAt > maxAgeMillis) {
+      return null;
+    }
+    int count = buffer.getInt();
+    long payloadLength = buffer.getLong();
+    long checksum = buffer.getLong();
+    if (count < 0 || payloadLength != buffer.remaining()) {
+      return null;
+    }
+    return new CacheSnapshot<>(buffer.slice(), codec, count, checksum);
+  }
+
+  /**
+   * Verifies the checksum and decodes every record; a snapshot that cannot be fully decoded
+   * yields nothing
+   * @return the decoded {@link M}s, in snapshot order
+   * @throws IOException when the checksum does not match, or a record is malformed or cannot be
+   * decoded
+   */
+  @NonNull
+  List<M> decode() throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(mPayload.duplicate());
+    if (crc.getValue() != mChecksum) {
+      throw new IOException("Snapshot checksum mismatch");
+    }
+    List<M> ms = new ArrayList<>();
+    ByteBuffer records = mPayload.duplicate();
+    for (int i = 0; i < mCount; i++) {
+      if (records.remaining() < 4) {
+        throw new IOException("Truncated snapshot record " + i);
+      }
+      int length = records.getInt();
+      if (length < 0 || length > records.remaining()) {
+        throw new IOException("Invalid length " + length + " of snapshot record " + i);
+      }
+      ByteBuffer record = records.slice();
+      record.limit(length);
+      try {
+        ms.add(mCodec.decode(record.asReadOnlyBuffer()));
+      } catch (RuntimeException e) {
+        throw new IOException("Unable to decode snapshot record " + i, e);
+      }
+      records.position(records.position() + length);
+    }
+    if (records.hasRemaining()) {
+      throw new IOException("Trailing bytes after " + mCount + " snapshot records");
+    }
+    return ms;
+  }
+}
@@ -0,0 +1,147 @@
+package dev.aclam.basedata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.reactivex.annotations.NonNull;
+import io.reactivex.annotations.Nullable;
+
+/**
+ * Immutable consistent hash ring mapping keys onto nodes of type {@link T}. Each node owns
+ * several virtual points on the ring, so adding a node only moves the keys it takes over. A ring
+ * remembers the ring it was derived from, so previous owners of a key can still be found.
+ */
+final class ConsistentHashRing<T> {
+
+  private static final int VIRTUAL_NODES = 128;
+
+  @NonNull
+  private final List<T> mNodes;
+
+  @NonNull
+  private final TreeMap<Integer, T> mRing;
+
+  @Nullable
+  private final ConsistentHashRing<T> mPrevious;
+
+  ConsistentHashRing(@NonNull List<T> nodes) {
+    this(nodes, null);
+  }
+
+  private ConsistentHashRing(@NonNull List<T> nodes, @Nullable ConsistentHashRing<T> previous) {
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("A hash ring needs at least one node");
+    }
+    mNodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+    mPrevious = previous;
+    mRing = new TreeMap<>();
+    for (int i = 0; i < mNodes.size(); i++) {
+      for (int v = 0; v < VIRTUAL_NODES; v++) {
+        mRing.put(hash(i + "#" + v), mNodes.get(i));
+      }
+    }
+  }
+
+  private ConsistentHashRing(@NonNull ConsistentHashRing<T> ring) {
+    mNodes = ring.mNodes;
+    mRing = ring.mRing;
+    mPrevious = null;
+  }
+
+  /**
+   * Creates a ring with an extra node; keys of the existing nodes keep their owner unless the
+   * new node takes them over
+   * @param node the node to add
+   * @return a new {@link ConsistentHashRing}
+   */
+  ConsistentHashRing<T> with(@NonNull T node) {
+    List<T> nodes = new ArrayList<>(mNodes);
+    nodes.add(node);
+    return new ConsistentHashRing<>(nodes, this);
+  }
+
+  /**
+   * @return this ring, forgetting the rings it was derived from
+   */
+  ConsistentHashRing<T> withoutPrevious() {
+    return mPrevious == null ? this : new ConsistentHashRing<>(this);
+  }
+
+  /**
+   * @return the nodes of the ring, in the order they were added
+   */
+  @NonNull
+  List<T> getNodes() {
+    return mNodes;
+  }
+
+  /**
+   * @param key a key
+   * @return the node owning the key
+   */
+  @NonNull
+  T get(@NonNull String key) {
+    Map.Entry<Integer, T> entry = mRing.ceilingEntry(hash(key));
+    return entry != null ? entry.getValue() : mRing.firstEntry().getValue();
+  }
+
+  /**
+   * @param key a key
+   * @return the nodes that owned the key in the rings this ring was derived from, most recent
+   * first, excluding its current owner
+   */
+  @NonNull
+  List<T> getPreviousOwners(@NonNull String key) {
+    T owner = get(key);
+    List<T> owners = Collections.emptyList();
+    for (ConsistentHashRing<T> ring = mPrevious; ring != null; ring = ring.mPrevious) {
+      T previous = ring.get(key);
+      if (previous != owner && !containsIdentical(owners, previous)) {
+        if (owners.isEmpty()) {
+          owners = new ArrayList<>();
+        }
+        owners.add(previous);
+      }
+    }
+    return owners;
+  }
+
+  /**
+   * @param key a key
+   * @param node a node
+   * @return whether the node owned the key in a ring this ring was derived from, and no longer
+   * does
+   */
+  boolean isPreviousOwner(@NonNull String key, @NonNull T node) {
+    return mPrevious != null && containsIdentical(getPreviousOwners(key), node);
+  }
+
+  private static <T> boolean containsIdentical(@NonNull List<T> nodes, @NonNull T node) {
+    for (T n : nodes) {
+      if (n == node) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * FNV-1a over the key's chars, finished with the murmur3 mixer to spread similar keys
+   */
+  private static int hash(@NonNull String key) {
+    int h = 0x811C9DC5;
+    for (int i = 0; i < key.length(); i++) {
+      h ^= key.charAt(i);
+      h *= 0x01000193;
+    }
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
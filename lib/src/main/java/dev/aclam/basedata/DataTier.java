@@ -0,0 +1,87 @@
+package dev.aclam.basedata;
+
+import dev.aclam.basemodel.BaseModel;
+import io.reactivex.annotations.NonNull;
+
+/**
+ * A {@link BaseDataSource} of type {@link M} in a {@link TieredRepository}, with its read, write
+ * and promotion policies
+ */
+public final class DataTier<M extends BaseModel> {
+
+  /**
+   * How writes to a {@link TieredRepository} reach a tier
+   */
+  public enum WritePolicy {
+    /**
+     * Writes complete only once the tier is written
+     */
+    WRITE_THROUGH,
+    /**
+     * Writes complete without waiting, the tier is written in the background afterwards
+     */
+    WRITE_BEHIND,
+    /**
+     * The tier is never written, e.g. a read replica
+     */
+    READ_ONLY
+  }
+
+  @NonNull
+  private final BaseDataSource<M> mDataSource;
+
+  private final boolean mReadThrough;
+
+  @NonNull
+  private final WritePolicy mWritePolicy;
+
+  private final boolean mPromote;
+
+  /**
+   * @param dataSource the {@link BaseDataSource} of the tier
+   * @param readThrough whether lookups consult this tier
+   * @param writePolicy the {@link WritePolicy} of the tier
+   * @param promote whether hits in lower tiers are back-filled into this tier, through its write
+   *                policy; a {@link WritePolicy#READ_ONLY} tier cannot be back-filled
+   * @throws IllegalArgumentException when a read-only tier is to be back-filled
+   */
+  public DataTier(@NonNull BaseDataSource<M> dataSource,
+                  boolean readThrough,
+                  @NonNull WritePolicy writePolicy,
+                  boolean promote) {
+    if (promote && writePolicy == WritePolicy.READ_ONLY) {
+      throw new IllegalArgumentException("A read-only tier cannot be back-filled");
+    }
+    mDataSource = dataSource;
+    mReadThrough = readThrough;
+    mWritePolicy = writePolicy;
+    mPromote = promote;
+  }
+
+  /**
+   * Creates a read-through, write-through tier that is back-filled on lower tier hits
+   * @param dataSource the {@link BaseDataSource} of the tier
+   * @return a {@link DataTier}
+   */
+  public static <M extends BaseModel> DataTier<M> of(@NonNull BaseDataSource<M> dataSource) {
+    return new DataTier<>(dataSource, true, WritePolicy.WRITE_THROUGH, true);
+  }
+
+  @NonNull
+  public BaseDataSource<M> getDataSource() {
+    return mDataSource;
+  }
+
+  public boolean isReadThrough() {
+    return mReadThrough;
+  }
+
+  @NonNull
+  public WritePolicy getWritePolicy() {
+    return mWritePolicy;
+  }
+
+  public boolean isPromote() {
+    return mPromote;
+  }
+}
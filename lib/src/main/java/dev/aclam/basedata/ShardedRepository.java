@@ -0,0 +1,311 @@
+package dev.aclam.basedata;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import dev.aclam.basemodel.BaseModel;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
+import io.reactivex.annotations.NonNull;
+import io.reactivex.annotations.Nullable;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Repository, a facade partitioning {@link M}s by uuid across shards of {@link BaseDataSource}s,
+ * e.g. in-process {@link BaseRepository}s or remote nodes, using consistent hashing.
+ * <p>
+ * Single item operations are routed to the owning shard, operations over many items fan out to
+ * the shards in parallel and merge their results. A shard that has nothing to return, including
+ * a {@link BaseRepository} failing with {@link NoSuchElementException}, counts as empty.
+ * <p>
+ * Adding a shard starts a rebalance, which lasts until {@link #finishRebalance()}. {@link M}s
+ * that shards enumerate through {@link #getAll()} are moved eagerly. Others, e.g. those only held
+ * by the local or remote tier of a {@link BaseRepository} shard, move lazily: lookups missing on
+ * the owning shard fall back to previous owners and move the hit. Moves and writes only
+ * {@link BaseDataSource#evict(BaseModel) evict} the previous owner's in-memory copy, so shards
+ * may share persistent storage; copies left in a previous owner's storage are ignored once the
+ * rebalance is finished.
+ */
+public abstract class ShardedRepository<M extends BaseModel> implements BaseDataSource<M> {
+
+  @NonNull
+  private volatile ConsistentHashRing<BaseDataSource<M>> mRing;
+
+  @NonNull
+  private final Scheduler mScheduler;
+
+  protected ShardedRepository(@NonNull List<? extends BaseDataSource<M>> shards) {
+    this(shards, Schedulers.io());
+  }
+
+  protected ShardedRepository(@NonNull List<? extends BaseDataSource<M>> shards,
+                              @NonNull Scheduler scheduler) {
+    mRing = new ConsistentHashRing<>(new ArrayList<>(shards));
+    mScheduler = scheduler;
+  }
+
+  @Override
+  public Completable add(M m) {
+    return Completable.defer(() -> {
+      ConsistentHashRing<BaseDataSource<M>> ring = mRing;
+      return ring.get(m.getUuid()).add(m).andThen(evictFromPreviousOwners(ring, m));
+    });
+  }
+
+  @Override
+  public Completable add(List<M> ms) {
+    return Completable.defer(() -> {
+      ConsistentHashRing<BaseDataSource<M>> ring = mRing;
+      Map<BaseDataSource<M>, List<M>> partitions = partition(ring, ms);
+      List<Completable> adds = new ArrayList<>(partitions.size());
+      for (Map.Entry<BaseDataSource<M>, List<M>> partition : partitions.entrySet()) {
+        List<M> shardMs = partition.getValue();
+        adds.add(partition.getKey().add(shardMs)
+            .andThen(Flowable.fromIterable(shardMs)
+                .concatMapCompletable(m -> evictFromPreviousOwners(ring, m)))
+            .subscribeOn(mScheduler));
+      }
+      return Completable.merge(adds);
+    });
+  }
+
+  /**
+   * Merges the {@link M}s of every shard; while rebalancing, {@link M}s not yet moved are taken
+   * from their previous owner and the owning shard's version wins over stale copies
+   */
+  @Override
+  public Flowable<List<M>> getAll() {
+    return Flowable.defer(() -> {
+      ConsistentHashRing<BaseDataSource<M>> ring = mRing;
+      return Flowable.fromIterable(ring.getNodes())
+          .flatMap(shard -> getAll(shard)
+              .map(ms -> new AbstractMap.SimpleImmutableEntry<>(shard, ms))
+              .subscribeOn(mScheduler))
+          .collect(LinkedHashMap<String, M>::new, (all, shardMs) -> merge(ring, all,
+              shardMs.getKey(), shardMs.getValue()))
+          .filter(all -> !all.isEmpty())
+          .<List<M>>map(all -> new ArrayList<>(all.values()))
+          .toFlowable();
+    });
+  }
+
+  @Override
+  public Flowable<M> get(String uid) {
+    return Flowable.defer(() -> {
+      ConsistentHashRing<BaseDataSource<M>> ring = mRing;
+      BaseDataSource<M> owner = ring.get(uid);
+      Flowable<M> m = get(owner, uid);
+      for (BaseDataSource<M> previous : ring.getPreviousOwners(uid)) {
+        m = m.switchIfEmpty(Flowable.defer(() -> get(previous, uid)
+            .flatMap(moved -> owner.add(moved)
+                .andThen(evictFromPreviousOwners(ring, moved))
+                .andThen(Flowable.just(moved)))));
+      }
+      return m;
+    });
+  }
+
+  @Nullable
+  @Override
+  public List<M> getAllIfPresent() {
+    ConsistentHashRing<BaseDataSource<M>> ring = mRing;
+    Map<String, M> all = new LinkedHashMap<>();
+    for (BaseDataSource<M> shard : ring.getNodes()) {
+      @Nullable List<M> ms = shard.getAllIfPresent();
+      if (ms == null) {
+        return null;
+      }
+      merge(ring, all, shard, ms);
+    }
+    return new ArrayList<>(all.values());
+  }
+
+  @Nullable
+  @Override
+  public M getIfPresent(String uid) {
+    ConsistentHashRing<BaseDataSource<M>> ring = mRing;
+    @Nullable M m = ring.get(uid).getIfPresent(uid);
+    if (m == null) {
+      for (BaseDataSource<M> previous : ring.getPreviousOwners(uid)) {
+        m = previous.getIfPresent(uid);
+        if (m != null) {
+          break;
+        }
+      }
+    }
+    return m;
+  }
+
+  @Override
+  public Completable update(M m) {
+    return Completable.defer(() -> {
+      ConsistentHashRing<BaseDataSource<M>> ring = mRing;
+      return ring.get(m.getUuid()).update(m).andThen(evictFromPreviousOwners(ring, m));
+    });
+  }
+
+  /**
+   * Compares and updates the {@link M} on its owning shard; read it through {@link #get(String)}
+   * first so it is moved to its owner after rebalancing
+   */
+  @Override
+  public Completable compareAndUpdate(@Nullable M expected, M m) {
+    return Completable.defer(() -> {
+      ConsistentHashRing<BaseDataSource<M>> ring = mRing;
+      return ring.get(m.getUuid()).compareAndUpdate(expected, m)
+          .andThen(evictFromPreviousOwners(ring, m));
+    });
+  }
+
+  /**
+   * Removes the {@link M} from its owning shard and, while rebalancing, from its previous owners
+   * so it is not found there again
+   */
+  @Override
+  public Completable remove(M m) {
+    return Completable.defer(() -> {
+      ConsistentHashRing<BaseDataSource<M>> ring = mRing;
+      Completable remove = ring.get(m.getUuid()).remove(m);
+      for (BaseDataSource<M> previous : ring.getPreviousOwners(m.getUuid())) {
+        remove = remove.andThen(Completable.defer(() -> previous.remove(m)));
+      }
+      return remove;
+    });
+  }
+
+  /**
+   * Evicts the {@link M} from its owning shard and, while rebalancing, from its previous owners
+   */
+  @Override
+  public Completable evict(M m) {
+    return Completable.defer(() -> {
+      ConsistentHashRing<BaseDataSource<M>> ring = mRing;
+      return ring.get(m.getUuid()).evict(m).andThen(evictFromPreviousOwners(ring, m));
+    });
+  }
+
+  @Override
+  public Completable removeAll() {
+    return Flowable.defer(() -> Flowable.fromIterable(mRing.getNodes()))
+        .flatMapCompletable(shard -> shard.removeAll().subscribeOn(mScheduler));
+  }
+
+  @Override
+  public Completable refresh() {
+    return Flowable.defer(() -> Flowable.fromIterable(mRing.getNodes()))
+        .flatMapCompletable(shard -> shard.refresh().subscribeOn(mScheduler));
+  }
+
+  /**
+   * Adds a shard and starts a rebalance. Routing switches to the new shard at once; the
+   * {@link M}s it takes over that existing shards return from {@link BaseDataSource#getAll()}
+   * are then moved to it unless it already holds a newer copy, and the rest move lazily on first
+   * access.
+   * @param shard the {@link BaseDataSource} to add
+   * @return a {@link Completable} emission once the eager moves are done
+   */
+  public Completable addShard(@NonNull BaseDataSource<M> shard) {
+    return Completable.defer(() -> {
+      ConsistentHashRing<BaseDataSource<M>> ring;
+      ConsistentHashRing<BaseDataSource<M>> rebalanced;
+      synchronized (this) {
+        ring = mRing;
+        rebalanced = ring.with(shard);
+        mRing = rebalanced;
+      }
+      return Flowable.fromIterable(ring.getNodes())
+          .flatMapCompletable(source -> getAll(source)
+              .flatMap(Flowable::fromIterable)
+              .filter(m -> rebalanced.get(m.getUuid()) == shard)
+              .concatMapCompletable(m -> get(shard, m.getUuid())
+                  .isEmpty()
+                  .flatMapCompletable(absent -> absent ? shard.add(m) : Completable.complete())
+                  .andThen(Completable.defer(() -> source.evict(m))))
+              .subscribeOn(mScheduler));
+    });
+  }
+
+  /**
+   * Finishes the rebalances started by {@link #addShard(BaseDataSource)}: previous owners are no
+   * longer consulted or evicted from. Call it once the {@link M}s taken over are reachable
+   * through their new owner, e.g. right after {@link #addShard(BaseDataSource)} completes when
+   * shards share persistent storage, or once the lazily moved {@link M}s have been read.
+   */
+  public synchronized void finishRebalance() {
+    mRing = mRing.withoutPrevious();
+  }
+
+  /**
+   * @param uid a {@link M}'s uuid
+   * @return the shard owning the uuid
+   */
+  @NonNull
+  BaseDataSource<M> getShard(@NonNull String uid) {
+    return mRing.get(uid);
+  }
+
+  /**
+   * Gets a single {@link M} from a shard, treating a shard without it as empty
+   */
+  private Flowable<M> get(@NonNull BaseDataSource<M> shard, String uid) {
+    return shard.get(uid).take(1).onErrorResumeNext(e -> e instanceof NoSuchElementException
+        ? Flowable.empty()
+        : Flowable.error(e));
+  }
+
+  /**
+   * Gets the {@link M}s of a shard, treating a shard without any as empty
+   */
+  private Flowable<List<M>> getAll(@NonNull BaseDataSource<M> shard) {
+    return shard.getAll().take(1).onErrorResumeNext(e -> e instanceof NoSuchElementException
+        ? Flowable.empty()
+        : Flowable.error(e));
+  }
+
+  private Completable evictFromPreviousOwners(
+      @NonNull ConsistentHashRing<BaseDataSource<M>> ring, @NonNull M m) {
+    List<BaseDataSource<M>> previousOwners = ring.getPreviousOwners(m.getUuid());
+    if (previousOwners.isEmpty()) {
+      return Completable.complete();
+    }
+    List<Completable> evictions = new ArrayList<>(previousOwners.size());
+    for (BaseDataSource<M> previous : previousOwners) {
+      evictions.add(Completable.defer(() -> previous.evict(m)));
+    }
+    return Completable.concat(evictions);
+  }
+
+  private static <M extends BaseModel> void merge(
+      @NonNull ConsistentHashRing<BaseDataSource<M>> ring, @NonNull Map<String, M> all,
+      @NonNull BaseDataSource<M> shard, @NonNull List<M> ms) {
+    for (M m : ms) {
+      if (ring.get(m.getUuid()) == shard) {
+        all.put(m.getUuid(), m);
+      } else if (ring.isPreviousOwner(m.getUuid(), shard)) {
+        all.putIfAbsent(m.getUuid(), m);
+      }
+    }
+  }
+
+  @NonNull
+  private static <M extends BaseModel> Map<BaseDataSource<M>, List<M>> partition(
+      @NonNull ConsistentHashRing<BaseDataSource<M>> ring, @NonNull List<M> ms) {
+    Map<BaseDataSource<M>, List<M>> partitions = new IdentityHashMap<>();
+    for (M m : ms) {
+      BaseDataSource<M> shard = ring.get(m.getUuid());
+      List<M> partition = partitions.get(shard);
+      if (partition == null) {
+        partition = new ArrayList<>();
+        partitions.put(shard, partition);
+      }
+      partition.add(m);
+    }
+    return partitions;
+  }
+}
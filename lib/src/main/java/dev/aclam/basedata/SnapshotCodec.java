@@ -0,0 +1,31 @@
+package dev.aclam.basedata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import dev.aclam.basemodel.BaseModel;
+import io.reactivex.annotations.NonNull;
+
+/**
+ * Converts a {@link M} to and from the compact binary form stored in a cache snapshot
+ * @param <M>
+ */
+public interface SnapshotCodec<M extends BaseModel> {
+  /**
+   * Encodes a {@link M}
+   * @param item a {@link M}
+   * @return the encoded bytes of the {@link M}
+   * @throws IOException when the {@link M} cannot be encoded
+   */
+  @NonNull
+  byte[] encode(@NonNull M item) throws IOException;
+
+  /**
+   * Decodes a {@link M}
+   * @param bytes a read-only buffer whose remaining bytes hold exactly one encoded {@link M}
+   * @return the decoded {@link M}
+   * @throws IOException when the bytes cannot be decoded
+   */
+  @NonNull
+  M decode(@NonNull ByteBuffer bytes) throws IOException;
+}
@@ -0,0 +1,376 @@
+package dev.aclam.basedata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import dev.aclam.basemodel.BaseModel;
+import io.reactivex.BackpressureOverflowStrategy;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
+import io.reactivex.annotations.NonNull;
+import io.reactivex.annotations.Nullable;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.MissingBackpressureException;
+import io.reactivex.functions.Function;
+import io.reactivex.processors.FlowableProcessor;
+import io.reactivex.processors.PublishProcessor;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Repository, a facade of an ordered list of {@link DataTier}s, fastest first. The lowest
+ * read-through tier is the authoritative one.
+ * <p>
+ * Lookups cascade down the read-through tiers and back-fill the promoting tiers above the hit.
+ * Writes and back-fills reach every tier according to its {@link DataTier.WritePolicy}. Each
+ * write-behind tier has its own bounded queue, applying writes one at a time in the order they
+ * were accepted; failed writes, and writes dropped because a queue is full, are reported on
+ * {@link #getWriteBehindErrors()}. The queues run until the repository is disposed.
+ */
+public abstract class TieredRepository<M extends BaseModel>
+    implements BaseDataSource<M>, Disposable {
+
+  /**
+   * Default number of writes a write-behind tier queues before dropping new ones
+   */
+  public static final int DEFAULT_WRITE_BEHIND_CAPACITY = 4096;
+
+  @NonNull
+  private final List<DataTier<M>> mTiers;
+
+  /**
+   * Write queue per tier, null for tiers that are not write-behind
+   */
+  @NonNull
+  private final List<FlowableProcessor<Completable>> mWriteBehindQueues;
+
+  @NonNull
+  private final FlowableProcessor<Throwable> mWriteBehindErrors;
+
+  @NonNull
+  private final CompositeDisposable mDisposables;
+
+  private final int mAuthoritativeIndex;
+
+  /**
+   * Set by {@link #refresh()}, forces lookups to the authoritative tier until it next hits
+   */
+  private volatile boolean mIsDirty = false;
+
+  protected TieredRepository(@NonNull List<DataTier<M>> tiers) {
+    this(tiers, Schedulers.io());
+  }
+
+  protected TieredRepository(@NonNull List<DataTier<M>> tiers,
+                             @NonNull Scheduler writeBehindScheduler) {
+    this(tiers, writeBehindScheduler, DEFAULT_WRITE_BEHIND_CAPACITY);
+  }
+
+  /**
+   * @param tiers the {@link DataTier}s, fastest first
+   * @param writeBehindScheduler the {@link Scheduler} write-behind tiers are written on
+   * @param writeBehindCapacity the number of writes each write-behind tier queues before
+   *                            dropping new ones
+   */
+  protected TieredRepository(@NonNull List<DataTier<M>> tiers,
+                             @NonNull Scheduler writeBehindScheduler,
+                             int writeBehindCapacity) {
+    if (writeBehindCapacity <= 0) {
+      throw new IllegalArgumentException("writeBehindCapacity must be positive");
+    }
+    mTiers = Collections.unmodifiableList(new ArrayList<>(tiers));
+    mWriteBehindErrors = PublishProcessor.<Throwable>create().toSerialized();
+    mDisposables = new CompositeDisposable();
+    List<FlowableProcessor<Completable>> queues = new ArrayList<>(mTiers.size());
+    int authoritativeIndex = -1;
+    for (int i = 0; i < mTiers.size(); i++) {
+      DataTier<M> tier = mTiers.get(i);
+      if (tier.isReadThrough()) {
+        authoritativeIndex = i;
+      }
+      if (tier.getWritePolicy() == DataTier.WritePolicy.WRITE_BEHIND) {
+        FlowableProcessor<Completable> queue = PublishProcessor.<Completable>create().toSerialized();
+        int index = i;
+        mDisposables.add(queue
+            .onBackpressureBuffer(writeBehindCapacity,
+                () -> mWriteBehindErrors.onNext(new MissingBackpressureException(
+                    "Write-behind queue of tier " + index + " is full, dropped a write")),
+                BackpressureOverflowStrategy.DROP_LATEST)
+            .observeOn(writeBehindScheduler)
+            .concatMapCompletable(write -> write
+                .doOnError(mWriteBehindErrors::onNext)
+                .onErrorComplete())
+            .subscribe());
+        queues.add(queue);
+      } else {
+        queues.add(null);
+      }
+    }
+    mWriteBehindQueues = Collections.unmodifiableList(queues);
+    mAuthoritativeIndex = authoritativeIndex;
+  }
+
+  @Override
+  public Completable add(M m) {
+    return write(dataSource -> dataSource.add(m));
+  }
+
+  @Override
+  public Completable add(List<M> ms) {
+    return write(dataSource -> dataSource.add(ms));
+  }
+
+  @Override
+  public Flowable<List<M>> getAll() {
+    return Flowable.defer(() -> getAll(0, mIsDirty));
+  }
+
+  @Override
+  public Flowable<M> get(String uid) {
+    return Flowable.defer(() -> get(uid, 0, mIsDirty));
+  }
+
+  @Nullable
+  @Override
+  public List<M> getAllIfPresent() {
+    if (mIsDirty) {
+      return null;
+    }
+    for (DataTier<M> tier : mTiers) {
+      if (tier.isReadThrough()) {
+        @Nullable List<M> ms = tier.getDataSource().getAllIfPresent();
+        if (ms != null && !ms.isEmpty()) {
+          return ms;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  @Override
+  public M getIfPresent(String uid) {
+    if (mIsDirty) {
+      return null;
+    }
+    for (int i = 0; i < mTiers.size(); i++) {
+      DataTier<M> tier = mTiers.get(i);
+      if (tier.isReadThrough()) {
+        @Nullable M m = tier.getDataSource().getIfPresent(uid);
+        if (m != null) {
+          return m;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Completable update(M m) {
+    return write(dataSource -> dataSource.update(m));
+  }
+
+  /**
+   * Compares and updates the write-through tiers, fastest first; if a tier rejects the update,
+   * the tiers that already took it are invalidated. A tier other than the authoritative one that
+   * does not hold the {@link M} has nothing to conflict with, so it takes a plain update and the
+   * authoritative tier decides. Write-behind tiers do not take part and receive the accepted
+   * {@link M} as a plain update.
+   */
+  @Override
+  public Completable compareAndUpdate(@Nullable M expected, M m) {
+    return Completable.defer(() -> {
+      if (!BaseModel.isNewerVersion(m, expected)) {
+        return Completable.error(new IllegalArgumentException(
+            "Update of " + m.getUuid() + " is not a newer version"));
+      }
+      List<BaseDataSource<M>> updated = new ArrayList<>(mTiers.size());
+      Completable compareAndUpdate = Completable.complete();
+      for (int i = 0; i < mTiers.size(); i++) {
+        DataTier<M> tier = mTiers.get(i);
+        if (tier.getWritePolicy() == DataTier.WritePolicy.WRITE_THROUGH) {
+          BaseDataSource<M> dataSource = tier.getDataSource();
+          boolean authoritative = i == mAuthoritativeIndex;
+          compareAndUpdate = compareAndUpdate
+              .andThen(Completable.defer(() ->
+                  authoritative || dataSource.getIfPresent(m.getUuid()) != null
+                      ? dataSource.compareAndUpdate(expected, m)
+                      : dataSource.update(m)))
+              .doOnComplete(() -> updated.add(dataSource));
+        }
+      }
+      return compareAndUpdate
+          .onErrorResumeNext(e -> invalidate(updated, m).andThen(Completable.error(e)))
+          .doOnComplete(() -> writeBehind(dataSource -> dataSource.update(m)));
+    });
+  }
+
+  @Override
+  public Completable remove(M m) {
+    return write(dataSource -> dataSource.remove(m));
+  }
+
+  /**
+   * Evicts the {@link M} from the writable tiers above the authoritative one
+   */
+  @Override
+  public Completable evict(M m) {
+    return Completable.defer(() -> {
+      List<Completable> evictions = new ArrayList<>(mTiers.size());
+      for (int i = 0; i < mAuthoritativeIndex; i++) {
+        DataTier<M> tier = mTiers.get(i);
+        if (tier.getWritePolicy() == DataTier.WritePolicy.WRITE_BEHIND) {
+          writeBehind(i, dataSource -> dataSource.evict(m));
+        } else if (tier.getWritePolicy() == DataTier.WritePolicy.WRITE_THROUGH) {
+          evictions.add(tier.getDataSource().evict(m));
+        }
+      }
+      return Completable.concat(evictions);
+    });
+  }
+
+  @Override
+  public Completable removeAll() {
+    return write(BaseDataSource::removeAll);
+  }
+
+  /**
+   * Refreshes every writable tier but the authoritative one, and forces lookups to the
+   * authoritative tier until it next hits. Read-only tiers are left untouched.
+   */
+  @Override
+  public Completable refresh() {
+    return Completable.defer(() -> {
+      mIsDirty = true;
+      List<Completable> refreshes = new ArrayList<>(mTiers.size());
+      for (int i = 0; i < mTiers.size(); i++) {
+        DataTier<M> tier = mTiers.get(i);
+        if (i != mAuthoritativeIndex && tier.getWritePolicy() != DataTier.WritePolicy.READ_ONLY) {
+          refreshes.add(tier.getDataSource().refresh());
+        }
+      }
+      return Completable.concat(refreshes);
+    });
+  }
+
+  /**
+   * Stops the write-behind queues; writes still queued are dropped
+   */
+  @Override
+  public void dispose() {
+    mDisposables.dispose();
+  }
+
+  @Override
+  public boolean isDisposed() {
+    return mDisposables.isDisposed();
+  }
+
+  /**
+   * @return a {@link Flowable} of write-behind failures, and of writes dropped because a
+   * write-behind queue was full
+   */
+  @NonNull
+  public Flowable<Throwable> getWriteBehindErrors() {
+    return mWriteBehindErrors;
+  }
+
+  private boolean isConsulted(DataTier<M> tier, int index, boolean dirty) {
+    return tier.isReadThrough() && (!dirty || index == mAuthoritativeIndex);
+  }
+
+  private Flowable<M> get(String uid, int index, boolean dirty) {
+    if (index == mTiers.size()) {
+      return Flowable.empty();
+    }
+    DataTier<M> tier = mTiers.get(index);
+    Flowable<M> lower = Flowable.defer(() -> get(uid, index + 1, dirty));
+    if (tier.isPromote()) {
+      lower = lower.flatMap(m -> promote(index, dataSource -> dataSource.add(m))
+          .andThen(Flowable.just(m)));
+    }
+    if (!isConsulted(tier, index, dirty)) {
+      return lower;
+    }
+    Flowable<M> hit = tier.getDataSource().get(uid).take(1);
+    if (dirty) {
+      hit = hit.doOnNext(m -> mIsDirty = false);
+    }
+    return hit.switchIfEmpty(lower);
+  }
+
+  private Flowable<List<M>> getAll(int index, boolean dirty) {
+    if (index == mTiers.size()) {
+      return Flowable.empty();
+    }
+    DataTier<M> tier = mTiers.get(index);
+    Flowable<List<M>> lower = Flowable.defer(() -> getAll(index + 1, dirty));
+    if (tier.isPromote()) {
+      lower = lower.flatMap(ms -> promote(index, dataSource -> dataSource.add(ms))
+          .andThen(Flowable.just(ms)));
+    }
+    if (!isConsulted(tier, index, dirty)) {
+      return lower;
+    }
+    Flowable<List<M>> hit = tier.getDataSource().getAll()
+        .filter(ms -> !ms.isEmpty())
+        .take(1);
+    if (dirty) {
+      hit = hit.doOnNext(ms -> mIsDirty = false);
+    }
+    return hit.switchIfEmpty(lower);
+  }
+
+  private Completable write(@NonNull Function<BaseDataSource<M>, Completable> op) {
+    return Completable.defer(() -> {
+      List<Completable> writeThrough = new ArrayList<>(mTiers.size());
+      for (DataTier<M> tier : mTiers) {
+        if (tier.getWritePolicy() == DataTier.WritePolicy.WRITE_THROUGH) {
+          writeThrough.add(op.apply(tier.getDataSource()));
+        }
+      }
+      return Completable.concat(writeThrough).doOnComplete(() -> writeBehind(op));
+    });
+  }
+
+  /**
+   * Queues the write on every write-behind tier
+   */
+  private void writeBehind(@NonNull Function<BaseDataSource<M>, Completable> op) {
+    for (int i = 0; i < mTiers.size(); i++) {
+      if (mWriteBehindQueues.get(i) != null) {
+        writeBehind(i, op);
+      }
+    }
+  }
+
+  private void writeBehind(int index, @NonNull Function<BaseDataSource<M>, Completable> op) {
+    BaseDataSource<M> dataSource = mTiers.get(index).getDataSource();
+    mWriteBehindQueues.get(index).onNext(Completable.defer(() -> op.apply(dataSource)));
+  }
+
+  /**
+   * Back-fills a tier, queuing the write if the tier is write-behind
+   */
+  private Completable promote(int index, @NonNull Function<BaseDataSource<M>, Completable> op)
+      throws Exception {
+    if (mWriteBehindQueues.get(index) != null) {
+      writeBehind(index, op);
+      return Completable.complete();
+    }
+    return op.apply(mTiers.get(index).getDataSource());
+  }
+
+  /**
+   * Removes the {@link M} from the data sources, best effort
+   */
+  private Completable invalidate(@NonNull List<BaseDataSource<M>> dataSources, M m) {
+    List<Completable> removes = new ArrayList<>(dataSources.size());
+    for (BaseDataSource<M> dataSource : dataSources) {
+      removes.add(Completable.defer(() -> dataSource.remove(m)));
+    }
+    return Completable.concat(removes).onErrorComplete();
+  }
+}
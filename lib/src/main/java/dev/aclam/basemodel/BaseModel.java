@@ -20,4 +20,41 @@ public interface BaseModel {
   default long getTimestamp() {
     return -1;
   }
+
+  /**
+   * Checks whether two {@link BaseModel}s are the same version of a row, by
+   * {@link #getTimestamp()} when both have one, otherwise by identity
+   *
+   * @param a a {@link BaseModel}, or null
+   * @param b a {@link BaseModel}, or null
+   * @return true if both are the same version, or both are null
+   */
+  static boolean isSameVersion(BaseModel a, BaseModel b) {
+    if (a == b) {
+      return true;
+    }
+    if (a == null || b == null || !a.getUuid().equals(b.getUuid())) {
+      return false;
+    }
+    return a.getTimestamp() >= 0 && a.getTimestamp() == b.getTimestamp();
+  }
+
+  /**
+   * Checks whether a {@link BaseModel} may replace another in a compare-and-update. A versioned
+   * successor must carry a greater {@link #getTimestamp()}; an unversioned one must be a new
+   * instance, since unversioned rows are compared by identity
+   *
+   * @param next the replacing {@link BaseModel}
+   * @param expected the replaced {@link BaseModel}, or null
+   * @return true if next is a newer version of expected
+   */
+  static boolean isNewerVersion(BaseModel next, BaseModel expected) {
+    if (expected == null) {
+      return true;
+    }
+    if (next == expected) {
+      return false;
+    }
+    return expected.getTimestamp() < 0 || next.getTimestamp() > expected.getTimestamp();
+  }
 }
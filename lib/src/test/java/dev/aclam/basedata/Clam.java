@@ -1,16 +1,24 @@
 package dev.aclam.basedata;
 
+import dev.aclam.annotation.Repo;
 import dev.aclam.basemodel.BaseModel;
 import io.reactivex.annotations.NonNull;
 
+@Repo
 class Clam implements BaseModel {
 
   @NonNull
   private final String mUuid;
+  private final long mTimestamp;
   private boolean mIsOpen;
 
   Clam(@NonNull String uuid){
+    this(uuid, -1);
+  }
+
+  Clam(@NonNull String uuid, long timestamp){
     mUuid = uuid;
+    mTimestamp = timestamp;
   }
 
   public boolean isOpen() {
@@ -25,4 +33,9 @@ class Clam implements BaseModel {
   public String getUuid() {
     return mUuid;
   }
+
+  @Override
+  public long getTimestamp() {
+    return mTimestamp;
+  }
 }
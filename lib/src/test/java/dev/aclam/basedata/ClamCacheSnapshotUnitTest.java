@@ -0,0 +1,254 @@
+package dev.aclam.basedata;
+
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import dev.aclam.basemodel.BaseModel;
+import io.reactivex.subscribers.TestSubscriber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit Tests for persisting and restoring {@link Clam} cache snapshots
+ */
+@RunWith(JUnit4.class)
+public class ClamCacheSnapshotUnitTest {
+
+  private static final long MAX_AGE_MILLIS = 60_000;
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private final SnapshotCodec<Clam> mCodec = new ClamSnapshotCodec();
+
+  private File mFile;
+
+  @Before
+  public void setupSnapshotFile() {
+    mFile = new File(mFolder.getRoot(), "clams.snapshot");
+  }
+
+  @Test
+  public void loadSnapshot_restoresSavedItems() {
+    // Given a cache with an open, versioned clam and a closed clam saved to a snapshot
+    Clam open = new Clam(UUID.randomUUID().toString(), 42);
+    open.setOpen(true);
+    Clam closed = new Clam(UUID.randomUUID().toString());
+    BaseCacheDataSource<Clam> cache = new ClamCacheDataSource();
+    cache.add(open).andThen(cache.add(closed)).andThen(cache.saveSnapshot(mFile, mCodec)).test()
+        .assertComplete();
+
+    // When a new cache loads the snapshot
+    BaseCacheDataSource<Clam> restored = new ClamCacheDataSource();
+    restored.loadSnapshot(mFile, mCodec, MAX_AGE_MILLIS).test().assertComplete();
+
+    // Then both clams are cached with their state
+    TestSubscriber<List<Clam>> testSubscriber = restored.getAll().test();
+    testSubscriber.assertValueCount(1);
+    List<Clam> clams = testSubscriber.values().get(0);
+    assertEquals(2, clams.size());
+    assertEquals(open.getUuid(), clams.get(0).getUuid());
+    assertTrue(clams.get(0).isOpen());
+    assertEquals(42, clams.get(0).getTimestamp());
+    assertTrue(BaseModel.isSameVersion(open, clams.get(0)));
+    assertEquals(closed.getUuid(), clams.get(1).getUuid());
+    assertEquals(-1, clams.get(1).getTimestamp());
+  }
+
+  @Test
+  public void loadSnapshot_discardsStaleSnapshot() throws InterruptedException {
+    // Given a saved snapshot
+    BaseCacheDataSource<Clam> cache = new ClamCacheDataSource();
+    cache.add(new Clam(UUID.randomUUID().toString()))
+        .andThen(cache.saveSnapshot(mFile, mCodec)).test().assertComplete();
+    Thread.sleep(10);
+
+    // When a new cache loads it with a shorter max age
+    BaseCacheDataSource<Clam> restored = new ClamCacheDataSource();
+    restored.loadSnapshot(mFile, mCodec, 1).test().assertComplete();
+
+    // Then nothing is cached
+    restored.getAll().test().assertNoValues().assertComplete();
+  }
+
+  @Test
+  public void loadSnapshot_keepsNewerCachedItems() {
+    // Given a snapshot holding a closed clam
+    Clam clam = new Clam(UUID.randomUUID().toString());
+    BaseCacheDataSource<Clam> cache = new ClamCacheDataSource();
+    cache.add(clam).andThen(cache.saveSnapshot(mFile, mCodec)).test().assertComplete();
+
+    // and a cache lazily loading it, which is updated before first read
+    BaseCacheDataSource<Clam> restored = new ClamCacheDataSource();
+    restored.loadSnapshotLazily(mFile, mCodec, MAX_AGE_MILLIS).test().assertComplete();
+    Clam opened = new Clam(clam.getUuid());
+    opened.setOpen(true);
+    restored.update(opened).test().assertComplete();
+
+    // Then the updated clam wins over the snapshot
+    restored.get(clam.getUuid()).test().assertValue(opened);
+  }
+
+  @Test
+  public void loadSnapshot_completes_whenSnapshotMissing() {
+    BaseCacheDataSource<Clam> cache = new ClamCacheDataSource();
+    cache.loadSnapshot(mFile, mCodec, MAX_AGE_MILLIS).test().assertComplete();
+    cache.getAll().test().assertNoValues().assertComplete();
+  }
+
+  @Test
+  public void loadSnapshot_discardsTruncatedSnapshot() throws IOException {
+    // Given a saved snapshot that is truncated
+    saveClams(10);
+    try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+
+    // When caches load it eagerly and lazily
+    BaseCacheDataSource<Clam> restored = new ClamCacheDataSource();
+    restored.loadSnapshot(mFile, mCodec, MAX_AGE_MILLIS).test().assertComplete();
+    BaseCacheDataSource<Clam> lazy = new ClamCacheDataSource();
+    lazy.loadSnapshotLazily(mFile, mCodec, MAX_AGE_MILLIS).test().assertComplete();
+
+    // Then nothing is cached and reads do not fail
+    restored.getAll().test().assertNoValues().assertComplete();
+    assertNull(lazy.getAllIfPresent());
+  }
+
+  @Test
+  public void loadSnapshot_discardsCorruptSnapshot() throws IOException {
+    // Given a saved snapshot with a flipped payload byte
+    saveClams(10);
+    try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+      long last = file.length() - 1;
+      file.seek(last);
+      int b = file.read();
+      file.seek(last);
+      file.write(b ^ 0xFF);
+    }
+
+    // When caches load it eagerly and lazily
+    BaseCacheDataSource<Clam> restored = new ClamCacheDataSource();
+    restored.loadSnapshot(mFile, mCodec, MAX_AGE_MILLIS).test().assertComplete();
+    BaseCacheDataSource<Clam> lazy = new ClamCacheDataSource();
+    lazy.loadSnapshotLazily(mFile, mCodec, MAX_AGE_MILLIS).test().assertComplete();
+
+    // Then nothing is cached
+    restored.getAll().test().assertNoValues().assertComplete();
+    assertNull(lazy.getAllIfPresent());
+  }
+
+  @Test
+  public void loadSnapshot_discardsSnapshotDatedInTheFuture() throws IOException {
+    // Given a saved snapshot whose creation timestamp is in the future
+    saveClams(1);
+    try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+      file.seek(8);
+      file.writeLong(System.currentTimeMillis() + MAX_AGE_MILLIS);
+    }
+
+    // When a new cache loads it
+    BaseCacheDataSource<Clam> restored = new ClamCacheDataSource();
+    restored.loadSnapshot(mFile, mCodec, MAX_AGE_MILLIS).test().assertComplete();
+
+    // Then nothing is cached
+    restored.getAll().test().assertNoValues().assertComplete();
+  }
+
+  @Test
+  public void loadSnapshotLazily_appliesNothing_whenRecordFailsToDecode() {
+    // Given a saved snapshot of ten clams
+    List<Clam> clams = saveClams(10);
+    // and a codec that fails on the last one
+    String failing = clams.get(9).getUuid();
+    SnapshotCodec<Clam> codec = new SnapshotCodec<Clam>() {
+      @Override
+      public byte[] encode(Clam clam) throws IOException {
+        return mCodec.encode(clam);
+      }
+
+      @Override
+      public Clam decode(ByteBuffer bytes) throws IOException {
+        Clam clam = mCodec.decode(bytes);
+        if (clam.getUuid().equals(failing)) {
+          throw new IllegalArgumentException("Unexpected clam");
+        }
+        return clam;
+      }
+    };
+
+    // When a cache lazily loads it
+    BaseCacheDataSource<Clam> restored = new ClamCacheDataSource();
+    restored.loadSnapshotLazily(mFile, codec, MAX_AGE_MILLIS).test().assertComplete();
+
+    // Then synchronous reads do not fail and nothing is cached
+    assertNull(restored.getIfPresent(clams.get(0).getUuid()));
+    assertNull(restored.getAllIfPresent());
+  }
+
+  @Test
+  public void removeAll_discardsSnapshotBeingDecoded() throws Exception {
+    // Given a saved snapshot
+    List<Clam> clams = saveClams(10);
+    // and a codec that blocks until released
+    CountDownLatch decoding = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    SnapshotCodec<Clam> codec = new SnapshotCodec<Clam>() {
+      @Override
+      public byte[] encode(Clam clam) throws IOException {
+        return mCodec.encode(clam);
+      }
+
+      @Override
+      public Clam decode(ByteBuffer bytes) throws IOException {
+        decoding.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return mCodec.decode(bytes);
+      }
+    };
+    BaseCacheDataSource<Clam> restored = new ClamCacheDataSource();
+    restored.loadSnapshotLazily(mFile, codec, MAX_AGE_MILLIS).test().assertComplete();
+
+    // When the cache is cleared while a first read decodes the snapshot
+    Thread reader = new Thread(() -> restored.getIfPresent(clams.get(0).getUuid()));
+    reader.start();
+    decoding.await();
+    Thread clearer = new Thread(() -> restored.removeAll().blockingAwait());
+    clearer.start();
+    Thread.sleep(50);
+    release.countDown();
+    reader.join();
+    clearer.join();
+
+    // Then nothing from the snapshot is cached
+    assertNull(restored.getAllIfPresent());
+  }
+
+  private List<Clam> saveClams(int count) {
+    BaseCacheDataSource<Clam> cache = new ClamCacheDataSource();
+    for (int i = 0; i < count; i++) {
+      cache.add(new Clam(UUID.randomUUID().toString())).test().assertComplete();
+    }
+    cache.saveSnapshot(mFile, mCodec).test().assertComplete();
+    return cache.getAllIfPresent();
+  }
+}
@@ -0,0 +1,108 @@
+package dev.aclam.basedata;
+
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Collections;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit Tests for the {@link Clam} repository generated from the {@code @Repo} annotation
+ */
+@RunWith(JUnit4.class)
+public class ClamGeneratedRepositoryUnitTest {
+
+  @Mock
+  private BaseDataSource<Clam> mLocal;
+  @Mock
+  private BaseDataSource<Clam> mRemote;
+  private Clam_CacheDataSource mCache;
+  private BaseRepository<Clam> mRepository;
+
+  @Before
+  public void setupRepository() {
+    MockitoAnnotations.initMocks(this);
+    mCache = new Clam_CacheDataSource();
+    mRepository = new Clam_Repository(mCache, mLocal, mRemote);
+  }
+
+  @Test
+  public void generatedRepository_readsCacheHitsThroughGeneratedCacheType() throws Exception {
+    // The cache is injected as the generated type
+    Clam_Repository.class.getDeclaredConstructor(
+        Clam_CacheDataSource.class, BaseDataSource.class, BaseDataSource.class);
+    // and the cache hit paths are generated rather than inherited
+    assertSame(Clam_Repository.class,
+        Clam_Repository.class.getMethod("get", String.class).getDeclaringClass());
+    assertSame(Clam_Repository.class,
+        Clam_Repository.class.getMethod("getIfPresent", String.class).getDeclaringClass());
+    assertSame(Clam_Repository.class,
+        Clam_Repository.class.getMethod("getAllIfPresent").getDeclaringClass());
+  }
+
+  @Test
+  public void getIfPresent_returnsItemFromGeneratedCache() {
+    // Given an item in the cache only
+    Clam clam = new Clam("uid1");
+    mCache.add(clam).blockingAwait();
+
+    // Then it is returned synchronously and by get, without reaching local or remote
+    assertSame(clam, mRepository.getIfPresent(clam.getUuid()));
+    assertEquals(Collections.singletonList(clam), mRepository.getAllIfPresent());
+    mRepository.get(clam.getUuid()).test().assertValue(clam);
+    verify(mLocal, never()).get(clam.getUuid());
+    verify(mRemote, never()).get(clam.getUuid());
+  }
+
+  @Test
+  public void get_readsRemote_afterRefresh() {
+    // Given a newer version of an item in remote
+    Clam clam = new Clam("uid1", 1);
+    Clam newer = new Clam("uid1", 2);
+    when(mRemote.get(clam.getUuid())).thenReturn(Flowable.just(newer));
+    when(mLocal.add(any(Clam.class))).thenReturn(Completable.complete());
+
+    // When the repository is refreshed and the stale item is cached again
+    mRepository.refresh().test().assertComplete();
+    mCache.add(clam).blockingAwait();
+
+    // Then the cache is bypassed until remote answers
+    assertNull(mRepository.getIfPresent(clam.getUuid()));
+    assertNull(mRepository.getAllIfPresent());
+    mRepository.get(clam.getUuid()).test().assertValue(newer);
+    assertSame(newer, mRepository.getIfPresent(clam.getUuid()));
+  }
+
+  @Test
+  public void get_servesFromGeneratedCache_afterAdd() {
+    // Given that save data to local and remote succeeds
+    Clam clam = new Clam("uid1");
+    when(mLocal.add(any(Clam.class))).thenReturn(Completable.complete());
+    when(mRemote.add(any(Clam.class))).thenReturn(Completable.complete());
+    when(mLocal.get(clam.getUuid())).thenReturn(Flowable.empty());
+    when(mRemote.get(clam.getUuid())).thenReturn(Flowable.empty());
+
+    // When the item is added and requested
+    mRepository.add(clam).test().assertComplete();
+
+    // Then it is served from the cache
+    mRepository.get(clam.getUuid()).test().assertValue(clam);
+    verify(mLocal, never()).get(clam.getUuid());
+    verify(mRemote, never()).get(clam.getUuid());
+  }
+}
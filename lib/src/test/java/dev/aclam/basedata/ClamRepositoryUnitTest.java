@@ -12,17 +12,28 @@ import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.reactivex.Completable;
 import io.reactivex.Flowable;
 import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subscribers.TestSubscriber;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -308,6 +319,311 @@ public class ClamRepositoryUnitTest {
     testSubscriber.assertComplete();
   }
 
+  @Test
+  public void ingest_writesBatchesToAllStorage() {
+    // Given a stream of five stub items
+    List<Clam> clams = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      clams.add(new Clam(UUID.randomUUID().toString()));
+    }
+    // and that save data to local and remote succeeds
+    setItemsAddSucceeds(mLocal);
+    setItemsAddSucceeds(mRemote);
+
+    // When the stream is ingested in batches of two
+    TestSubscriber<BulkImportProgress> testSubscriber = mRepository
+        .ingest(Flowable.fromIterable(clams), 2, 2, Schedulers.trampoline())
+        .test();
+
+    // Then three batches are written to the local and remote storage
+    verify(mLocal, times(3)).add(anyList());
+    verify(mRemote, times(3)).add(anyList());
+    // and progress is reported per batch
+    testSubscriber.assertComplete();
+    testSubscriber.assertValueCount(3);
+    BulkImportProgress last = testSubscriber.values().get(2);
+    assertEquals(5, last.getCount());
+    assertEquals(3, last.getBatches());
+
+    // Subscribes to cache assert values are there
+    TestSubscriber<List<Clam>> cacheSubscriber = new TestSubscriber<>();
+    mCache.getAll().subscribe(cacheSubscriber);
+    cacheSubscriber.assertValue(clams);
+  }
+
+  @Test
+  public void ingest_keepsLastVersionInEveryTier_whenItemRepeatsAcrossBatches() {
+    // Given two versions of the same item in consecutive batches
+    Clam closed = new Clam("uid1");
+    Clam opened = new Clam("uid1");
+    opened.setOpen(true);
+    // and a remote storage that is slow to write the first batch
+    BaseDataSource<Clam> remoteStore = new ClamCacheDataSource();
+    when(mRemote.add(anyList())).thenAnswer(invocation -> {
+      List<Clam> batch = invocation.getArgument(0);
+      long delay = batch.contains(closed) ? 100 : 0;
+      return Completable.timer(delay, TimeUnit.MILLISECONDS).andThen(remoteStore.add(batch));
+    });
+    setItemsAddSucceeds(mLocal);
+
+    // When the versions are ingested with both batches in flight
+    TestSubscriber<BulkImportProgress> testSubscriber = mRepository
+        .ingest(Flowable.just(closed, opened), 1, 2, Schedulers.io())
+        .test();
+    testSubscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+
+    // Then every tier holds the last version
+    testSubscriber.assertComplete();
+    testSubscriber.assertValueCount(2);
+    assertSame(opened, remoteStore.getIfPresent("uid1"));
+    assertSame(opened, mCache.getIfPresent("uid1"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ingest_rejectsNonPositiveBatchSize() {
+    mRepository.ingest(Flowable.fromIterable(CLAMS), 0, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ingest_rejectsNonPositiveInFlightBatches() {
+    mRepository.ingest(Flowable.fromIterable(CLAMS), 1, 0);
+  }
+
+  @Test
+  public void ingest_fails_whenRemoteStorageFails() {
+    // Given that save data to local succeeds
+    setItemsAddSucceeds(mLocal);
+    // and that save data to remote fails
+    when(mRemote.add(anyList())).thenReturn(Completable.error(new IllegalStateException()));
+
+    // When a stream is ingested
+    TestSubscriber<BulkImportProgress> testSubscriber = mRepository
+        .ingest(Flowable.fromIterable(CLAMS), 1, 1, Schedulers.trampoline())
+        .test();
+
+    // Then the import stops with the error
+    testSubscriber.assertError(IllegalStateException.class);
+    testSubscriber.assertNoValues();
+  }
+
+  @Test
+  public void compareAndUpdate_letsRemoteDecide_whenCacheCold() {
+    // Given that compare and update on remote and update on local succeeds
+    setItemCompareAndUpdateSucceeds(mRemote);
+    setItemUpdateSucceeds(mLocal);
+
+    // When an item that is not cached is compared and updated
+    Clam expected = new Clam("uid1", 1);
+    Clam next = new Clam("uid1", 2);
+    mRepository.compareAndUpdate(expected, next).test().assertComplete();
+
+    // Then remote compares, and cache and local take the update
+    verify(mRemote).compareAndUpdate(expected, next);
+    verify(mLocal).update(next);
+    assertSame(next, mCache.getIfPresent(next.getUuid()));
+  }
+
+  @Test
+  public void compareAndUpdate_fails_whenCachedItemChanged() {
+    // Given a cached stub item
+    Clam cached = new Clam("uid1");
+    mCache.add(cached).test().assertComplete();
+    // and that compare and update on local and remote succeeds
+    setItemCompareAndUpdateSucceeds(mLocal);
+    setItemCompareAndUpdateSucceeds(mRemote);
+
+    // When an update based on another version is attempted
+    Clam next = new Clam("uid1");
+    TestObserver<Void> observer = mRepository.compareAndUpdate(new Clam("uid1"), next).test();
+
+    // Then the update fails and the cached item is kept
+    observer.assertError(ConcurrentModificationException.class);
+    mCache.get(cached.getUuid()).test().assertValue(cached);
+  }
+
+  @Test
+  public void updateAtomically_retries_whenConcurrentUpdateWins() {
+    // Given a cached stub item
+    Clam cached = new Clam("uid1");
+    mCache.add(cached).test().assertComplete();
+    // and that compare and update on remote and update on local succeeds
+    setItemCompareAndUpdateSucceeds(mRemote);
+    setItemUpdateSucceeds(mLocal);
+    // and a concurrent writer that replaces the item during the first attempt
+    Clam concurrent = new Clam("uid1");
+    AtomicInteger attempts = new AtomicInteger();
+
+    // When the item is updated atomically
+    TestSubscriber<Clam> testSubscriber = mRepository.updateAtomically(cached.getUuid(), clam -> {
+      if (attempts.getAndIncrement() == 0) {
+        mCache.update(concurrent).blockingAwait();
+      }
+      Clam next = new Clam(clam.getUuid());
+      next.setOpen(!clam.isOpen());
+      return next;
+    }).test();
+
+    // Then the update is retried against the concurrent version and succeeds
+    assertEquals(2, attempts.get());
+    testSubscriber.assertValueCount(1);
+    testSubscriber.assertComplete();
+    Clam updated = testSubscriber.values().get(0);
+    verify(mRemote).compareAndUpdate(concurrent, updated);
+    verify(mLocal).update(updated);
+    mCache.get(cached.getUuid()).test().assertValue(updated);
+  }
+
+  @Test
+  public void updateAtomically_retriesFromRemote_whenRemoteRejectsUpdate() {
+    // Given a cached stub item
+    Clam cached = new Clam("uid1");
+    mCache.add(cached).test().assertComplete();
+    // and a remote holding a newer version that rejects the first update
+    Clam remoteVersion = new Clam("uid1");
+    setItemAvailable(mRemote, remoteVersion);
+    when(mRemote.compareAndUpdate(any(), any(Clam.class)))
+        .thenReturn(Completable.error(new ConcurrentModificationException()))
+        .thenReturn(Completable.complete());
+    // and that save and update data to local succeeds
+    setItemAddSucceeds(mLocal);
+    setItemUpdateSucceeds(mLocal);
+    AtomicInteger attempts = new AtomicInteger();
+
+    // When the item is updated atomically
+    TestSubscriber<Clam> testSubscriber = mRepository.updateAtomically(cached.getUuid(), clam -> {
+      attempts.incrementAndGet();
+      Clam next = new Clam(clam.getUuid());
+      next.setOpen(!clam.isOpen());
+      return next;
+    }).test();
+
+    // Then the update is retried once against the remote version and succeeds
+    assertEquals(2, attempts.get());
+    testSubscriber.assertValueCount(1);
+    testSubscriber.assertComplete();
+    Clam updated = testSubscriber.values().get(0);
+    verify(mRemote).compareAndUpdate(remoteVersion, updated);
+    // and local only mirrors the accepted update
+    verify(mLocal, times(1)).update(any(Clam.class));
+    verify(mLocal).update(updated);
+    mCache.get(cached.getUuid()).test().assertValue(updated);
+  }
+
+  @Test
+  public void compareAndUpdate_invalidatesCache_whenRemoteRejectsUpdate() {
+    // Given a cached stub item
+    Clam cached = new Clam("uid1");
+    mCache.add(cached).test().assertComplete();
+    // and a remote that rejects the update
+    when(mRemote.compareAndUpdate(any(), any(Clam.class)))
+        .thenReturn(Completable.error(new ConcurrentModificationException()));
+
+    // When the item is updated
+    TestObserver<Void> observer = mRepository.compareAndUpdate(cached, new Clam("uid1")).test();
+
+    // Then the update fails, the cached item is invalidated and local is not written
+    observer.assertError(ConcurrentModificationException.class);
+    assertNull(mCache.getIfPresent(cached.getUuid()));
+    verify(mLocal, never()).update(any(Clam.class));
+  }
+
+  @Test
+  public void compareAndUpdate_rejectsSecondWriter_whenVersionsAdvance() {
+    // Given a cached versioned stub item
+    Clam cached = new Clam("uid1", 5);
+    mCache.add(cached).test().assertComplete();
+    setItemCompareAndUpdateSucceeds(mRemote);
+    setItemUpdateSucceeds(mLocal);
+
+    // When two writers update from the same version
+    TestObserver<Void> first = mRepository.compareAndUpdate(cached, new Clam("uid1", 6)).test();
+    TestObserver<Void> second = mRepository.compareAndUpdate(cached, new Clam("uid1", 7)).test();
+
+    // Then only the first succeeds
+    first.assertComplete();
+    second.assertError(ConcurrentModificationException.class);
+    assertEquals(6, mCache.getIfPresent("uid1").getTimestamp());
+  }
+
+  @Test
+  public void compareAndUpdate_rejectsUpdateThatIsNotNewer() {
+    // Given a cached versioned and a cached unversioned stub item
+    Clam versioned = new Clam("uid1", 5);
+    Clam unversioned = new Clam("uid2");
+    mCache.add(versioned).andThen(mCache.add(unversioned)).test().assertComplete();
+
+    // Then an update keeping the version, or reusing the instance, is rejected
+    mRepository.compareAndUpdate(versioned, new Clam("uid1", 5)).test()
+        .assertError(IllegalArgumentException.class);
+    mRepository.compareAndUpdate(unversioned, unversioned).test()
+        .assertError(IllegalArgumentException.class);
+    mCache.compareAndUpdate(versioned, new Clam("uid1", 4)).test()
+        .assertError(IllegalArgumentException.class);
+    verify(mRemote, never()).compareAndUpdate(any(), any(Clam.class));
+  }
+
+  @Test
+  public void cacheCompareAndUpdate_appliesEveryUpdate_underContention() throws InterruptedException {
+    // Given a cached versioned stub item after another one
+    Clam first = new Clam("uid0");
+    mCache.add(first).andThen(mCache.add(new Clam("uid1", 0))).test().assertComplete();
+
+    // When several threads advance its version, retrying on conflicts
+    int threadCount = 4;
+    int updatesPerThread = 500;
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < threadCount; i++) {
+      threads.add(new Thread(() -> {
+        for (int applied = 0; applied < updatesPerThread; ) {
+          Clam current = mCache.getIfPresent("uid1");
+          Clam next = new Clam("uid1", current.getTimestamp() + 1);
+          if (mCache.compareAndUpdate(current, next).blockingGet() == null) {
+            applied++;
+          }
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    // Then no update is lost, and the item keeps its place
+    List<Clam> clams = mCache.getAllIfPresent();
+    assertEquals(2, clams.size());
+    assertSame(first, clams.get(0));
+    assertEquals(threadCount * updatesPerThread, clams.get(1).getTimestamp());
+  }
+
+  @Test
+  public void getIfPresent_returnsCachedItem_withoutSubscribing() {
+    // Given a cached stub item
+    Clam clam = CLAMS.get(0);
+    mCache.add(clam).test().assertComplete();
+
+    // Then it is returned synchronously without reaching local and remote storage
+    assertSame(clam, mRepository.getIfPresent(clam.getUuid()));
+    assertEquals(Collections.singletonList(clam), mRepository.getAllIfPresent());
+    verify(mLocal, never()).get(anyString());
+    verify(mRemote, never()).get(anyString());
+  }
+
+  @Test
+  public void getIfPresent_returnsNull_whenNotCachedOrCacheDirty() {
+    // Given a cached stub item
+    Clam clam = CLAMS.get(0);
+    mCache.add(clam).test().assertComplete();
+
+    // Then a missing item is not present
+    assertNull(mRepository.getIfPresent("uid1"));
+
+    // and nothing is present once the cache is marked dirty
+    mRepository.refresh().test().assertComplete();
+    assertNull(mRepository.getIfPresent(clam.getUuid()));
+    assertNull(mRepository.getAllIfPresent());
+  }
 
   private void setItemsNotAvailable(BaseDataSource<Clam> dataSource) {
     when(dataSource.getAll()).thenReturn(Flowable.just(Collections.emptyList()));
@@ -330,10 +646,18 @@ public class ClamRepositoryUnitTest {
     when(dataSource.add(any(Clam.class))).thenReturn(Completable.complete());
   }
 
+  private void setItemsAddSucceeds(BaseDataSource<Clam> dataSource) {
+    when(dataSource.add(anyList())).thenReturn(Completable.complete());
+  }
+
   private void setItemUpdateSucceeds(BaseDataSource<Clam> dataSource) {
     when(dataSource.update(any(Clam.class))).thenReturn(Completable.complete());
   }
 
+  private void setItemCompareAndUpdateSucceeds(BaseDataSource<Clam> dataSource) {
+    when(dataSource.compareAndUpdate(any(), any(Clam.class))).thenReturn(Completable.complete());
+  }
+
   private void setItemsRemoveSucceeds(BaseDataSource<Clam> dataSource) {
     when(dataSource.remove(any(Clam.class))).thenReturn(Completable.complete());
     when(dataSource.removeAll()).thenReturn(Completable.complete());
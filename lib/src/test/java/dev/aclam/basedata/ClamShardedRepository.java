@@ -0,0 +1,12 @@
+package dev.aclam.basedata;
+
+import java.util.List;
+
+import io.reactivex.Scheduler;
+
+class ClamShardedRepository extends ShardedRepository<Clam> {
+
+  ClamShardedRepository(List<? extends BaseDataSource<Clam>> shards, Scheduler scheduler) {
+    super(shards, scheduler);
+  }
+}
@@ -0,0 +1,341 @@
+package dev.aclam.basedata;
+
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subscribers.TestSubscriber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit Tests for the implementation of a {@link Clam} repository sharded over in-memory
+ * {@link Clam} caches and over {@link ClamRepository}s with stand-in local and remote data sources
+ */
+@RunWith(JUnit4.class)
+public class ClamShardedRepositoryUnitTest {
+
+  private static final int SHARD_COUNT = 3;
+
+  private static final List<Clam> CLAMS = new ArrayList<>();
+
+  static {
+    for (int i = 0; i < 1000; i++) {
+      CLAMS.add(new Clam(UUID.randomUUID().toString()));
+    }
+  }
+
+  private List<BaseCacheDataSource<Clam>> mShards;
+  private ShardedRepository<Clam> mRepository;
+
+  private List<BaseDataSource<Clam>> mRepositoryShards;
+  private List<BaseCacheDataSource<Clam>> mRemotes;
+  private ShardedRepository<Clam> mShardedRepositories;
+
+  @Before
+  public void setupRepository() {
+    mShards = new ArrayList<>();
+    for (int i = 0; i < SHARD_COUNT; i++) {
+      mShards.add(new ClamCacheDataSource());
+    }
+    mRepository = new ClamShardedRepository(mShards, Schedulers.io());
+
+    mRepositoryShards = new ArrayList<>();
+    mRemotes = new ArrayList<>();
+    for (int i = 0; i < SHARD_COUNT; i++) {
+      mRepositoryShards.add(newRepositoryShard());
+    }
+    mShardedRepositories = new ClamShardedRepository(mRepositoryShards, Schedulers.io());
+  }
+
+  private ClamRepository newRepositoryShard() {
+    BaseCacheDataSource<Clam> remote = new ClamCacheDataSource();
+    mRemotes.add(remote);
+    return new ClamRepository(new ClamCacheDataSource(), new ClamCacheDataSource(), remote);
+  }
+
+  private BaseCacheDataSource<Clam> getRemote(BaseDataSource<Clam> shard) {
+    return mRemotes.get(mRepositoryShards.indexOf(shard));
+  }
+
+  @Test
+  public void add_routesItemToOwningShardOnly() {
+    // Given a stub item
+    Clam clam = CLAMS.get(0);
+
+    // When the item is added
+    mRepository.add(clam).blockingAwait();
+
+    // Then only its owning shard holds it
+    for (BaseCacheDataSource<Clam> shard : mShards) {
+      TestSubscriber<Clam> testSubscriber = shard.get(clam.getUuid()).test();
+      testSubscriber.assertValueCount(shard == mRepository.getShard(clam.getUuid()) ? 1 : 0);
+    }
+    mRepository.get(clam.getUuid()).test().assertValue(clam);
+  }
+
+  @Test
+  public void getAll_mergesItemsFromAllShards() {
+    // Given items added in bulk
+    mRepository.add(CLAMS).blockingAwait();
+
+    // Then every shard holds some of them
+    for (BaseCacheDataSource<Clam> shard : mShards) {
+      assertFalse(shard.getAll().blockingFirst().isEmpty());
+    }
+    // and all of them are returned
+    List<Clam> clams = mRepository.getAll().blockingFirst();
+    assertEquals(new HashSet<>(CLAMS), new HashSet<>(clams));
+  }
+
+  @Test
+  public void getAll_completesEmpty_whenShardsEmpty() {
+    TestSubscriber<List<Clam>> testSubscriber = mRepository.getAll().test();
+    testSubscriber.awaitTerminalEvent();
+    testSubscriber.assertNoValues().assertComplete();
+  }
+
+  @Test
+  public void addShard_movesOnlyItemsOwnedByNewShard() {
+    // Given items added in bulk
+    mRepository.add(CLAMS).blockingAwait();
+    List<BaseDataSource<Clam>> owners = new ArrayList<>();
+    for (Clam clam : CLAMS) {
+      owners.add(mRepository.getShard(clam.getUuid()));
+    }
+
+    // When a shard is added
+    BaseCacheDataSource<Clam> added = new ClamCacheDataSource();
+    mRepository.addShard(added).blockingAwait();
+
+    // Then items either stay on their shard or move to the new shard
+    Set<Clam> moved = new HashSet<>(added.getAll().blockingFirst());
+    assertFalse(moved.isEmpty());
+    assertTrue(moved.size() < CLAMS.size());
+    for (int i = 0; i < CLAMS.size(); i++) {
+      Clam clam = CLAMS.get(i);
+      BaseDataSource<Clam> owner = mRepository.getShard(clam.getUuid());
+      if (moved.contains(clam)) {
+        assertSame(added, owner);
+        owners.get(i).get(clam.getUuid()).test().assertNoValues();
+      } else {
+        assertSame(owners.get(i), owner);
+      }
+      mRepository.get(clam.getUuid()).test().assertValue(clam);
+    }
+  }
+
+  @Test
+  public void removeAll_clearsAllShards() {
+    mRepository.add(CLAMS).blockingAwait();
+
+    mRepository.removeAll().blockingAwait();
+
+    for (BaseCacheDataSource<Clam> shard : mShards) {
+      shard.getAll().test().assertNoValues();
+    }
+  }
+
+  @Test
+  public void getAll_overRepositoryShards_skipsEmptyShards() {
+    // Given a single item, leaving most repository shards empty
+    Clam clam = CLAMS.get(0);
+    mShardedRepositories.add(clam).blockingAwait();
+
+    // When all items are requested
+    TestSubscriber<List<Clam>> testSubscriber = mShardedRepositories.getAll().test();
+
+    // Then the item is returned
+    testSubscriber.awaitTerminalEvent();
+    testSubscriber.assertValue(Collections.singletonList(clam)).assertComplete();
+  }
+
+  @Test
+  public void getAll_overRepositoryShards_completesEmpty_whenShardsEmpty() {
+    TestSubscriber<List<Clam>> testSubscriber = mShardedRepositories.getAll().test();
+    testSubscriber.awaitTerminalEvent();
+    testSubscriber.assertNoErrors().assertNoValues().assertComplete();
+  }
+
+  @Test
+  public void addShard_overRepositoryShards_movesRemoteOnlyItemsOnAccess() {
+    // Given items held by the remotes of their owning repository shards
+    List<BaseDataSource<Clam>> owners = seedRepositoryShardRemotes();
+
+    // When a repository shard is added
+    BaseDataSource<Clam> added = newRepositoryShard();
+    mRepositoryShards.add(added);
+    TestObserver<Void> testObserver = mShardedRepositories.addShard(added).test();
+    testObserver.awaitTerminalEvent();
+    testObserver.assertNoErrors().assertComplete();
+
+    // Then every item is still found, and items owned by the new shard are moved to it
+    int moved = 0;
+    for (int i = 0; i < CLAMS.size(); i++) {
+      Clam clam = CLAMS.get(i);
+      TestSubscriber<Clam> testSubscriber = mShardedRepositories.get(clam.getUuid()).test();
+      testSubscriber.awaitTerminalEvent();
+      testSubscriber.assertValue(clam);
+      if (mShardedRepositories.getShard(clam.getUuid()) == added) {
+        moved++;
+        assertSame(clam, getRemote(added).getIfPresent(clam.getUuid()));
+        assertNull(owners.get(i).getIfPresent(clam.getUuid()));
+      } else {
+        assertSame(owners.get(i), mShardedRepositories.getShard(clam.getUuid()));
+      }
+    }
+    assertTrue(moved > 0);
+    assertTrue(moved < CLAMS.size());
+  }
+
+  @Test
+  public void update_afterAddShard_evictsStaleCopyFromPreviousOwner() {
+    // Given items held by the remotes of their owning repository shards
+    List<BaseDataSource<Clam>> owners = seedRepositoryShardRemotes();
+    // and a repository shard added
+    BaseDataSource<Clam> added = newRepositoryShard();
+    mRepositoryShards.add(added);
+    mShardedRepositories.addShard(added).blockingAwait();
+    int index = indexOfFirstOwnedBy(added);
+    Clam clam = CLAMS.get(index);
+    BaseDataSource<Clam> previousOwner = owners.get(index);
+    // and the previous owner caching an item taken over by the new shard
+    previousOwner.get(clam.getUuid()).blockingFirst();
+    assertSame(clam, previousOwner.getIfPresent(clam.getUuid()));
+
+    // When the item is updated without being read first
+    Clam updated = new Clam(clam.getUuid(), clam.getTimestamp() + 1);
+    mShardedRepositories.update(updated).blockingAwait();
+
+    // Then the previous owner no longer caches a stale copy, and its storage is left untouched
+    assertNull(previousOwner.getIfPresent(clam.getUuid()));
+    assertSame(clam, getRemote(previousOwner).getIfPresent(clam.getUuid()));
+    assertSame(updated, getRemote(added).getIfPresent(clam.getUuid()));
+    // and the item is returned once, in its latest version, during and after the rebalance
+    assertEquals(Collections.singletonList(updated), getCopies(clam.getUuid()));
+    mShardedRepositories.finishRebalance();
+    assertEquals(Collections.singletonList(updated), getCopies(clam.getUuid()));
+  }
+
+  @Test
+  public void addShard_overRepositoryShards_keepsItemsInSharedRemote() {
+    // Given repository shards sharing a remote, holding items added through the facade
+    BaseCacheDataSource<Clam> remote = new ClamCacheDataSource();
+    List<BaseDataSource<Clam>> shards = new ArrayList<>();
+    for (int i = 0; i < SHARD_COUNT; i++) {
+      shards.add(new ClamRepository(new ClamCacheDataSource(), new ClamCacheDataSource(), remote));
+    }
+    ShardedRepository<Clam> repository = new ClamShardedRepository(shards, Schedulers.io());
+    repository.add(CLAMS).blockingAwait();
+
+    // When a repository shard on the same remote is added and the rebalance finished
+    BaseDataSource<Clam> added =
+        new ClamRepository(new ClamCacheDataSource(), new ClamCacheDataSource(), remote);
+    repository.addShard(added).blockingAwait();
+    repository.finishRebalance();
+
+    // Then the remote still holds every item
+    assertEquals(CLAMS.size(), remote.getAllIfPresent().size());
+    // and every item is found once
+    assertEquals(new HashSet<>(CLAMS), new HashSet<>(repository.getAll().blockingFirst()));
+    assertEquals(CLAMS.size(), repository.getAll().blockingFirst().size());
+    for (Clam clam : CLAMS) {
+      TestSubscriber<Clam> testSubscriber = repository.get(clam.getUuid()).test();
+      testSubscriber.awaitTerminalEvent();
+      testSubscriber.assertValue(clam);
+    }
+  }
+
+  @Test
+  public void finishRebalance_stopsEvictingFromPreviousOwners() {
+    // Given shards holding items
+    List<BaseDataSource<Clam>> shards = new ArrayList<>();
+    for (int i = 0; i < SHARD_COUNT; i++) {
+      shards.add(spy(new ClamCacheDataSource()));
+    }
+    ShardedRepository<Clam> repository = new ClamShardedRepository(shards, Schedulers.io());
+    repository.add(CLAMS).blockingAwait();
+    List<BaseDataSource<Clam>> owners = new ArrayList<>();
+    for (Clam clam : CLAMS) {
+      owners.add(repository.getShard(clam.getUuid()));
+    }
+    // and a shard added
+    BaseDataSource<Clam> added = new ClamCacheDataSource();
+    repository.addShard(added).blockingAwait();
+    List<Clam> moved = new ArrayList<>();
+    List<BaseDataSource<Clam>> previousOwners = new ArrayList<>();
+    for (int i = 0; i < CLAMS.size() && moved.size() < 2; i++) {
+      if (repository.getShard(CLAMS.get(i).getUuid()) == added) {
+        moved.add(CLAMS.get(i));
+        previousOwners.add(owners.get(i));
+      }
+    }
+
+    // When moved items are updated during and after the rebalance
+    Clam during = new Clam(moved.get(0).getUuid(), 1);
+    repository.update(during).blockingAwait();
+    repository.finishRebalance();
+    Clam after = new Clam(moved.get(1).getUuid(), 1);
+    repository.update(after).blockingAwait();
+
+    // Then only the update during the rebalance reaches the previous owner
+    verify(previousOwners.get(0)).evict(during);
+    verify(previousOwners.get(1), never()).evict(after);
+    verify(previousOwners.get(1), never()).remove(after);
+  }
+
+  /**
+   * Seeds the remotes of the repository shards with the items they own, and has each shard cache
+   * one of them so its getAll() returns the cached item only
+   * @return the owning shard of each item
+   */
+  private List<BaseDataSource<Clam>> seedRepositoryShardRemotes() {
+    List<BaseDataSource<Clam>> owners = new ArrayList<>();
+    for (Clam clam : CLAMS) {
+      BaseDataSource<Clam> owner = mShardedRepositories.getShard(clam.getUuid());
+      getRemote(owner).add(clam).blockingAwait();
+      owners.add(owner);
+    }
+    for (BaseDataSource<Clam> shard : mRepositoryShards) {
+      shard.get(CLAMS.get(owners.indexOf(shard)).getUuid()).blockingFirst();
+      assertEquals(1, shard.getAll().blockingFirst().size());
+    }
+    return owners;
+  }
+
+  private int indexOfFirstOwnedBy(BaseDataSource<Clam> shard) {
+    int index = 0;
+    while (mShardedRepositories.getShard(CLAMS.get(index).getUuid()) != shard) {
+      index++;
+    }
+    return index;
+  }
+
+  private List<Clam> getCopies(String uuid) {
+    List<Clam> copies = new ArrayList<>();
+    for (Clam clam : mShardedRepositories.getAll().blockingFirst()) {
+      if (clam.getUuid().equals(uuid)) {
+        copies.add(clam);
+      }
+    }
+    return copies;
+  }
+}
@@ -0,0 +1,27 @@
+package dev.aclam.basedata;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+class ClamSnapshotCodec implements SnapshotCodec<Clam> {
+
+  @Override
+  public byte[] encode(Clam clam) {
+    byte[] uuid = clam.getUuid().getBytes(StandardCharsets.UTF_8);
+    return ByteBuffer.allocate(8 + uuid.length + 1)
+        .putLong(clam.getTimestamp())
+        .put(uuid)
+        .put((byte) (clam.isOpen() ? 1 : 0))
+        .array();
+  }
+
+  @Override
+  public Clam decode(ByteBuffer bytes) {
+    long timestamp = bytes.getLong();
+    byte[] uuid = new byte[bytes.remaining() - 1];
+    bytes.get(uuid);
+    Clam clam = new Clam(new String(uuid, StandardCharsets.UTF_8), timestamp);
+    clam.setOpen(bytes.get() == 1);
+    return clam;
+  }
+}
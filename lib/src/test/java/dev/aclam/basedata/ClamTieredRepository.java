@@ -0,0 +1,17 @@
+package dev.aclam.basedata;
+
+import java.util.List;
+
+import io.reactivex.Scheduler;
+
+class ClamTieredRepository extends TieredRepository<Clam> {
+
+  ClamTieredRepository(List<DataTier<Clam>> tiers, Scheduler writeBehindScheduler) {
+    super(tiers, writeBehindScheduler);
+  }
+
+  ClamTieredRepository(List<DataTier<Clam>> tiers, Scheduler writeBehindScheduler,
+                       int writeBehindCapacity) {
+    super(tiers, writeBehindScheduler, writeBehindCapacity);
+  }
+}
@@ -0,0 +1,365 @@
+package dev.aclam.basedata;
+
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.exceptions.MissingBackpressureException;
+import io.reactivex.plugins.RxJavaPlugins;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.schedulers.TestScheduler;
+import io.reactivex.subscribers.TestSubscriber;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit Tests for the implementation of a {@link Clam} repository over an ordered list of tiers
+ */
+@RunWith(JUnit4.class)
+public class ClamTieredRepositoryUnitTest {
+
+  private static final List<Clam> CLAMS = new ArrayList<>();
+
+  static {
+    CLAMS.add(new Clam(UUID.randomUUID().toString()));
+    CLAMS.add(new Clam(UUID.randomUUID().toString()));
+  }
+
+  private BaseDataSource<Clam> mCache;
+  @Mock
+  private BaseDataSource<Clam> mNear;
+  @Mock
+  private BaseDataSource<Clam> mReplica;
+  @Mock
+  private BaseDataSource<Clam> mRemote;
+  private TestScheduler mWriteBehindScheduler;
+  private TieredRepository<Clam> mRepository;
+
+  @Before
+  public void setupRepository() {
+    MockitoAnnotations.initMocks(this);
+    mCache = new ClamCacheDataSource();
+    mWriteBehindScheduler = new TestScheduler();
+    mRepository = new ClamTieredRepository(Arrays.asList(
+        DataTier.of(mCache),
+        new DataTier<>(mNear, true, DataTier.WritePolicy.WRITE_BEHIND, false),
+        new DataTier<>(mReplica, true, DataTier.WritePolicy.READ_ONLY, false),
+        DataTier.of(mRemote)
+    ), mWriteBehindScheduler);
+    when(mNear.get(anyString())).thenReturn(Flowable.empty());
+    when(mNear.getAll()).thenReturn(Flowable.empty());
+    when(mReplica.get(anyString())).thenReturn(Flowable.empty());
+    when(mReplica.getAll()).thenReturn(Flowable.empty());
+  }
+
+  @Test
+  public void get_backFillsPromotingTiersAboveHit() {
+    // Given that only the replica has the item
+    Clam clam = CLAMS.get(0);
+    when(mReplica.get(clam.getUuid())).thenReturn(Flowable.just(clam).concatWith(Flowable.never()));
+
+    // When a subscription is set
+    TestSubscriber<Clam> testSubscriber = mRepository.get(clam.getUuid()).test();
+
+    // Then the item is returned without reaching remote
+    testSubscriber.assertValue(clam);
+    testSubscriber.assertComplete();
+    verify(mRemote, never()).get(anyString());
+    // and the promoting cache is back-filled, the non-promoting near tier is not
+    verify(mNear, never()).add(any(Clam.class));
+    mCache.get(clam.getUuid()).test().assertValue(clam);
+  }
+
+  @Test
+  public void get_stopsAtFirstHit() {
+    // Given that the cache has the item
+    Clam clam = CLAMS.get(0);
+    mCache.add(clam).test().assertComplete();
+
+    // When a subscription is set
+    TestSubscriber<Clam> testSubscriber = mRepository.get(clam.getUuid()).test();
+
+    // Then lower tiers are not consulted
+    testSubscriber.assertValue(clam);
+    verify(mNear, never()).get(anyString());
+    verify(mRemote, never()).get(anyString());
+  }
+
+  @Test
+  public void get_completesEmpty_whenNoTierHasItem() {
+    when(mRemote.get(anyString())).thenReturn(Flowable.empty());
+
+    mRepository.get("uid1").test().assertNoValues().assertComplete();
+  }
+
+  @Test
+  public void getAll_skipsEmptyTiersAndBackFills() {
+    // Given that the remote has items and the replica has an empty list
+    when(mReplica.getAll()).thenReturn(Flowable.just(new ArrayList<>()));
+    when(mRemote.getAll()).thenReturn(Flowable.just(CLAMS).concatWith(Flowable.never()));
+
+    // When a subscription is set
+    TestSubscriber<List<Clam>> testSubscriber = mRepository.getAll().test();
+
+    // Then the remote items are returned and cached
+    testSubscriber.assertValue(CLAMS);
+    mCache.getAll().test().assertValue(CLAMS);
+  }
+
+  @Test
+  public void add_writesThroughAndBehind_butNotReadOnlyTiers() {
+    // Given that save data to near and remote succeeds
+    Clam clam = new Clam("uid1");
+    when(mNear.add(any(Clam.class))).thenReturn(Completable.complete());
+    when(mRemote.add(any(Clam.class))).thenReturn(Completable.complete());
+
+    // When the item is added
+    mRepository.add(clam).test().assertComplete();
+
+    // Then write-through tiers are written
+    verify(mRemote).add(clam);
+    mCache.get(clam.getUuid()).test().assertValue(clam);
+    // and the write-behind tier is only written once its scheduler runs
+    verify(mNear, never()).add(any(Clam.class));
+    mWriteBehindScheduler.triggerActions();
+    verify(mNear).add(clam);
+    // and the read-only tier is never written
+    verify(mReplica, never()).add(any(Clam.class));
+    verify(mReplica, never()).add(anyList());
+  }
+
+  @Test
+  public void writeBehind_appliesWritesInOrder() throws InterruptedException {
+    // Given a write-behind tier that is slow to add
+    BaseDataSource<Clam> nearStore = new ClamCacheDataSource();
+    CountDownLatch written = new CountDownLatch(2);
+    when(mNear.add(any(Clam.class))).thenAnswer(invocation -> Completable
+        .timer(50, TimeUnit.MILLISECONDS)
+        .andThen(nearStore.add((Clam) invocation.getArgument(0)))
+        .doOnComplete(written::countDown));
+    when(mNear.remove(any(Clam.class))).thenAnswer(invocation -> nearStore
+        .remove((Clam) invocation.getArgument(0))
+        .doOnComplete(written::countDown));
+    TieredRepository<Clam> repository = new ClamTieredRepository(Arrays.asList(
+        DataTier.of(mCache),
+        new DataTier<>(mNear, true, DataTier.WritePolicy.WRITE_BEHIND, false)
+    ), Schedulers.io());
+
+    // When an item is added and then removed
+    Clam clam = new Clam("uid1");
+    repository.add(clam).test().assertComplete();
+    repository.remove(clam).test().assertComplete();
+
+    // Then the write-behind tier applies the removal last
+    assertTrue(written.await(5, TimeUnit.SECONDS));
+    assertNull(nearStore.getIfPresent(clam.getUuid()));
+  }
+
+  @Test
+  public void compareAndUpdate_updatesWriteBehindTiers_withoutComparing() {
+    // Given a cached stub item
+    Clam cached = new Clam("uid1");
+    mCache.add(cached).test().assertComplete();
+    // and that compare and update on remote and update on near succeeds
+    when(mRemote.compareAndUpdate(any(), any(Clam.class))).thenReturn(Completable.complete());
+    when(mNear.update(any(Clam.class))).thenReturn(Completable.complete());
+
+    // When the item is compared and updated
+    Clam next = new Clam("uid1");
+    mRepository.compareAndUpdate(cached, next).test().assertComplete();
+
+    // Then write-through tiers compare, the write-behind tier is updated once queued writes run
+    verify(mRemote).compareAndUpdate(cached, next);
+    mCache.get(cached.getUuid()).test().assertValue(next);
+    verify(mNear, never()).compareAndUpdate(any(), any(Clam.class));
+    mWriteBehindScheduler.triggerActions();
+    verify(mNear).update(next);
+    // and the read-only tier is never written
+    verify(mReplica, never()).compareAndUpdate(any(), any(Clam.class));
+  }
+
+  @Test
+  public void compareAndUpdate_invalidatesFasterTiers_whenLowerTierRejects() {
+    // Given a cached stub item
+    Clam cached = new Clam("uid1");
+    mCache.add(cached).test().assertComplete();
+    // and a remote that rejects the update
+    when(mRemote.compareAndUpdate(any(), any(Clam.class)))
+        .thenReturn(Completable.error(new ConcurrentModificationException()));
+
+    // When the item is compared and updated
+    mRepository.compareAndUpdate(cached, new Clam("uid1")).test()
+        .assertError(ConcurrentModificationException.class);
+
+    // Then the cache no longer holds the item and the write-behind tier is not written
+    assertNull(mCache.getIfPresent(cached.getUuid()));
+    mWriteBehindScheduler.triggerActions();
+    verify(mNear, never()).update(any(Clam.class));
+  }
+
+  @Test
+  public void refresh_forcesAuthoritativeTier_andLeavesReadOnlyTiers() {
+    // Given a stale item in the cache and near tiers, and a fresh one in remote
+    Clam stale = new Clam("uid1");
+    Clam fresh = new Clam("uid1");
+    fresh.setOpen(true);
+    mCache.add(stale).test().assertComplete();
+    when(mNear.get(stale.getUuid())).thenReturn(Flowable.just(stale));
+    when(mNear.refresh()).thenReturn(Completable.complete());
+    when(mRemote.get(fresh.getUuid())).thenReturn(Flowable.just(fresh).concatWith(Flowable.never()));
+
+    // When the repository is refreshed
+    mRepository.refresh().test().assertComplete();
+
+    // Then writable tiers above the authoritative one are refreshed, the others are not
+    verify(mNear).refresh();
+    verify(mReplica, never()).refresh();
+    verify(mRemote, never()).refresh();
+    assertNull(mRepository.getIfPresent(stale.getUuid()));
+
+    // and the next lookup goes straight to the authoritative tier and back-fills the cache
+    mRepository.get(fresh.getUuid()).test().assertValue(fresh);
+    verify(mNear, never()).get(anyString());
+    verify(mReplica, never()).get(anyString());
+    mRepository.get(fresh.getUuid()).test().assertValue(fresh);
+    verify(mRemote).get(fresh.getUuid());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void dataTier_rejectsBackFillingReadOnlyTier() {
+    new DataTier<>(mReplica, true, DataTier.WritePolicy.READ_ONLY, true);
+  }
+
+  @Test
+  public void get_backFillsWriteBehindTierThroughItsQueue() {
+    // Given a promoting write-behind tier above the remote holding the item
+    Clam clam = new Clam("uid1");
+    when(mNear.add(any(Clam.class))).thenReturn(Completable.complete());
+    when(mNear.remove(any(Clam.class))).thenReturn(Completable.complete());
+    when(mRemote.get(clam.getUuid())).thenReturn(Flowable.just(clam));
+    when(mRemote.remove(any(Clam.class))).thenReturn(Completable.complete());
+    TieredRepository<Clam> repository = new ClamTieredRepository(Arrays.asList(
+        new DataTier<>(mNear, true, DataTier.WritePolicy.WRITE_BEHIND, true),
+        DataTier.of(mRemote)
+    ), mWriteBehindScheduler);
+
+    // When the item is removed and then read back from remote
+    repository.remove(clam).test().assertComplete();
+    repository.get(clam.getUuid()).test().assertValue(clam);
+
+    // Then the back-fill waits behind the queued removal
+    verify(mNear, never()).add(any(Clam.class));
+    mWriteBehindScheduler.triggerActions();
+    InOrder inOrder = inOrder(mNear);
+    inOrder.verify(mNear).remove(clam);
+    inOrder.verify(mNear).add(clam);
+  }
+
+  @Test
+  public void compareAndUpdate_skipsCompare_whenTierDoesNotHoldItem() {
+    // Given a cache that is never back-filled and is cold
+    when(mRemote.compareAndUpdate(any(), any(Clam.class))).thenReturn(Completable.complete());
+    TieredRepository<Clam> repository = new ClamTieredRepository(Arrays.asList(
+        new DataTier<>(mCache, true, DataTier.WritePolicy.WRITE_THROUGH, false),
+        DataTier.of(mRemote)
+    ), mWriteBehindScheduler);
+
+    // When an item held by remote only is compared and updated
+    Clam expected = new Clam("uid1", 1);
+    Clam next = new Clam("uid1", 2);
+    repository.compareAndUpdate(expected, next).test().assertComplete();
+
+    // Then remote decides and the cache takes the update
+    verify(mRemote).compareAndUpdate(expected, next);
+    assertSame(next, mCache.getIfPresent(next.getUuid()));
+  }
+
+  @Test
+  public void writeBehind_reportsFailures_withoutGlobalErrorHandler() {
+    // Given a write-behind tier that fails to add
+    List<Throwable> undeliverable = new ArrayList<>();
+    RxJavaPlugins.setErrorHandler(undeliverable::add);
+    try {
+      when(mNear.add(any(Clam.class))).thenReturn(Completable.error(new IllegalStateException()));
+      when(mRemote.add(any(Clam.class))).thenReturn(Completable.complete());
+      TestSubscriber<Throwable> errors = mRepository.getWriteBehindErrors().test();
+
+      // When an item is added and queued writes run
+      mRepository.add(new Clam("uid1")).test().assertComplete();
+      mWriteBehindScheduler.triggerActions();
+
+      // Then the failure is reported on the repository only
+      errors.assertValueCount(1);
+      assertTrue(errors.values().get(0) instanceof IllegalStateException);
+      assertTrue(undeliverable.isEmpty());
+    } finally {
+      RxJavaPlugins.reset();
+    }
+  }
+
+  @Test
+  public void writeBehind_dropsWrites_whenQueueFull() {
+    // Given a write-behind tier with a queue of one write
+    when(mNear.add(any(Clam.class))).thenReturn(Completable.complete());
+    TieredRepository<Clam> repository = new ClamTieredRepository(Arrays.asList(
+        DataTier.of(mCache),
+        new DataTier<>(mNear, true, DataTier.WritePolicy.WRITE_BEHIND, false)
+    ), mWriteBehindScheduler, 1);
+    TestSubscriber<Throwable> errors = repository.getWriteBehindErrors().test();
+
+    // When more writes are accepted than the tier keeps up with
+    int count = 1000;
+    for (int i = 0; i < count; i++) {
+      repository.add(new Clam(UUID.randomUUID().toString())).test().assertComplete();
+    }
+    mWriteBehindScheduler.triggerActions();
+
+    // Then the writes that did not fit are dropped and reported
+    assertTrue(errors.valueCount() > 0);
+    for (Throwable error : errors.values()) {
+      assertTrue(error instanceof MissingBackpressureException);
+    }
+    verify(mNear, times(count - errors.valueCount())).add(any(Clam.class));
+  }
+
+  @Test
+  public void dispose_stopsWriteBehindQueues() {
+    // Given a write queued for the write-behind tier
+    when(mNear.add(any(Clam.class))).thenReturn(Completable.complete());
+    when(mRemote.add(any(Clam.class))).thenReturn(Completable.complete());
+    mRepository.add(new Clam("uid1")).test().assertComplete();
+
+    // When the repository is disposed
+    mRepository.dispose();
+
+    // Then the queue is stopped
+    assertTrue(mRepository.isDisposed());
+    mWriteBehindScheduler.triggerActions();
+    verify(mNear, never()).add(any(Clam.class));
+  }
+}
@@ -0,0 +1,213 @@
+package dev.aclam.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a repository and in-memory cache per model annotated with {@code @Repo}.
+ * <p>
+ * For a model {@code Clam} it generates {@code Clam_CacheDataSource} and {@code Clam_Repository}
+ * in the model's package, with {@code @Inject} constructors whose parameters carry the
+ * {@code @Cache}, {@code @Local} and {@code @Remote} qualifiers, so a compile-time injector can
+ * wire them without reflection. The repository keeps its cache typed as the final
+ * {@code Clam_CacheDataSource} and overrides the cache hits of {@code get}, {@code getAll} and
+ * their synchronous variants against it, so those calls are bound to a single implementation
+ * instead of going through the shared {@code BaseDataSource} call sites of
+ * {@code BaseRepository}.
+ * <p>
+ * {@code @Repo} is also used as a qualifier, so only annotated model classes are processed and
+ * the annotation is never claimed.
+ */
+public class RepositoryProcessor extends AbstractProcessor {
+
+  private static final String REPO = "dev.aclam.annotation.Repo";
+
+  private static final String BASE_MODEL = "dev.aclam.basemodel.BaseModel";
+
+  private static final String CACHE_SUFFIX = "_CacheDataSource";
+
+  private static final String REPOSITORY_SUFFIX = "_Repository";
+
+  private Elements mElements;
+
+  private Types mTypes;
+
+  private Filer mFiler;
+
+  private Messager mMessager;
+
+  @Override
+  public synchronized void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    mElements = processingEnv.getElementUtils();
+    mTypes = processingEnv.getTypeUtils();
+    mFiler = processingEnv.getFiler();
+    mMessager = processingEnv.getMessager();
+  }
+
+  @Override
+  public Set<String> getSupportedAnnotationTypes() {
+    return Collections.singleton(REPO);
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    TypeElement repo = mElements.getTypeElement(REPO);
+    TypeElement baseModel = mElements.getTypeElement(BASE_MODEL);
+    if (repo == null || baseModel == null) {
+      return false;
+    }
+    for (Element element : roundEnv.getElementsAnnotatedWith(repo)) {
+      if (element.getKind() != ElementKind.CLASS) {
+        continue;
+      }
+      TypeElement model = (TypeElement) element;
+      if (!mTypes.isAssignable(model.asType(), baseModel.asType())) {
+        error(model, "@Repo class %s must implement %s", model.getSimpleName(), BASE_MODEL);
+      } else if (!model.getTypeParameters().isEmpty()) {
+        error(model, "@Repo class %s must not be generic", model.getSimpleName());
+      } else {
+        generate(model);
+      }
+    }
+    return false;
+  }
+
+  private void generate(TypeElement model) {
+    String packageName = getPackageName(model);
+    String modelName = model.getQualifiedName().toString();
+    String baseName = getBaseName(model, packageName);
+    String cacheName = baseName + CACHE_SUFFIX;
+    String repositoryName = baseName + REPOSITORY_SUFFIX;
+    String modifiers = model.getModifiers().contains(Modifier.PUBLIC) ? "public " : "";
+
+    StringBuilder cache = new StringBuilder();
+    appendHeader(cache, packageName);
+    cache.append("import javax.inject.Inject;\n\n")
+        .append("import dev.aclam.basedata.BaseCacheDataSource;\n\n")
+        .append("/**\n")
+        .append(" * In-memory cache of {@link ").append(modelName).append("}\n")
+        .append(" */\n")
+        .append(modifiers).append("final class ").append(cacheName)
+        .append(" extends BaseCacheDataSource<").append(modelName).append("> {\n\n")
+        .append("  @Inject\n")
+        .append("  ").append(modifiers).append(cacheName).append("() {\n")
+        .append("  }\n")
+        .append("}\n");
+    write(model, packageName, cacheName, cache);
+
+    StringBuilder repository = new StringBuilder();
+    appendHeader(repository, packageName);
+    repository.append("import java.util.List;\n\n")
+        .append("import javax.inject.Inject;\n\n")
+        .append("import dev.aclam.annotation.Cache;\n")
+        .append("import dev.aclam.annotation.Local;\n")
+        .append("import dev.aclam.annotation.Remote;\n")
+        .append("import dev.aclam.basedata.BaseDataSource;\n")
+        .append("import dev.aclam.basedata.BaseRepository;\n")
+        .append("import io.reactivex.Flowable;\n\n")
+        .append("/**\n")
+        .append(" * Repository of {@link ").append(modelName).append("}, serving cache hits from its\n")
+        .append(" * {@link ").append(cacheName).append("}\n")
+        .append(" */\n")
+        .append(modifiers).append("final class ").append(repositoryName)
+        .append(" extends BaseRepository<").append(modelName).append("> {\n\n")
+        .append("  private final ").append(cacheName).append(" mCache;\n\n")
+        .append("  @Inject\n")
+        .append("  ").append(modifiers).append(repositoryName).append("(")
+        .append("@Cache ").append(cacheName).append(" cache,\n")
+        .append("      @Local BaseDataSource<").append(modelName).append("> local,\n")
+        .append("      @Remote BaseDataSource<").append(modelName).append("> remote) {\n")
+        .append("    super(cache, local, remote);\n")
+        .append("    mCache = cache;\n")
+        .append("  }\n\n")
+        .append("  /**\n")
+        .append("   * Creates a repository backed by a new {@link ").append(cacheName).append("}\n")
+        .append("   */\n")
+        .append("  ").append(modifiers).append("static ").append(repositoryName).append(" create(")
+        .append("@Local BaseDataSource<").append(modelName).append("> local,\n")
+        .append("      @Remote BaseDataSource<").append(modelName).append("> remote) {\n")
+        .append("    return new ").append(repositoryName).append("(new ").append(cacheName)
+        .append("(), local, remote);\n")
+        .append("  }\n\n")
+        .append("  @Override\n")
+        .append("  public Flowable<List<").append(modelName).append(">> getAll() {\n")
+        .append("    List<").append(modelName).append("> ms = getAllIfPresent();\n")
+        .append("    return ms != null ? Flowable.just(ms) : super.getAll();\n")
+        .append("  }\n\n")
+        .append("  @Override\n")
+        .append("  public Flowable<").append(modelName).append("> get(String uid) {\n")
+        .append("    ").append(modelName).append(" m = getIfPresent(uid);\n")
+        .append("    return m != null ? Flowable.just(m) : super.get(uid);\n")
+        .append("  }\n\n")
+        .append("  @Override\n")
+        .append("  public List<").append(modelName).append("> getAllIfPresent() {\n")
+        .append("    return isCacheDirty() ? null : mCache.getAllIfPresent();\n")
+        .append("  }\n\n")
+        .append("  @Override\n")
+        .append("  public ").append(modelName).append(" getIfPresent(String uid) {\n")
+        .append("    return isCacheDirty() ? null : mCache.getIfPresent(uid);\n")
+        .append("  }\n")
+        .append("}\n");
+    write(model, packageName, repositoryName, repository);
+  }
+
+  private static void appendHeader(StringBuilder source, String packageName) {
+    source.append("// Generated by ").append(RepositoryProcessor.class.getName())
+        .append(". Do not edit.\n");
+    if (!packageName.isEmpty()) {
+      source.append("package ").append(packageName).append(";\n\n");
+    }
+  }
+
+  private void write(TypeElement model, String packageName, String name, CharSequence source) {
+    String qualifiedName = packageName.isEmpty() ? name : packageName + "." + name;
+    try (Writer writer = mFiler.createSourceFile(qualifiedName, model).openWriter()) {
+      writer.append(source);
+    } catch (IOException e) {
+      error(model, "Unable to write %s: %s", qualifiedName, e.getMessage());
+    }
+  }
+
+  private String getPackageName(TypeElement model) {
+    PackageElement packageElement = mElements.getPackageOf(model);
+    return packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+  }
+
+  /**
+   * Flattens nested model names, e.g. {@code Outer.Inner} becomes {@code Outer_Inner}
+   */
+  private static String getBaseName(TypeElement model, String packageName) {
+    String qualifiedName = model.getQualifiedName().toString();
+    String name = packageName.isEmpty()
+        ? qualifiedName
+        : qualifiedName.substring(packageName.length() + 1);
+    return name.replace('.', '_');
+  }
+
+  private void error(Element element, String format, Object... args) {
+    mMessager.printMessage(Diagnostic.Kind.ERROR, String.format(format, args), element);
+  }
+}
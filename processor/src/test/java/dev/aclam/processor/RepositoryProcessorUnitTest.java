@@ -0,0 +1,151 @@
+package dev.aclam.processor;
+
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit Tests for {@link RepositoryProcessor}, compiling {@code @Repo} models against the library
+ */
+@RunWith(JUnit4.class)
+public class RepositoryProcessorUnitTest {
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void process_generatesCacheAndRepository_forModel() {
+    // Given a model
+    String source = "package test;\n"
+        + "@dev.aclam.annotation.Repo\n"
+        + "public class Shell implements dev.aclam.basemodel.BaseModel {\n"
+        + "  public String getUuid() { return \"uid\"; }\n"
+        + "}\n";
+
+    // When it is compiled
+    List<String> errors = compile("test.Shell", source);
+
+    // Then both classes are generated and compile against the library
+    assertEquals(Collections.emptyList(), errors);
+    assertTrue(new File(mFolder.getRoot(), "test/Shell_CacheDataSource.java").isFile());
+    assertTrue(new File(mFolder.getRoot(), "test/Shell_Repository.java").isFile());
+  }
+
+  @Test
+  public void process_reportsError_whenNotBaseModel() {
+    // Given an annotated class that is not a model
+    String source = "package test;\n"
+        + "@dev.aclam.annotation.Repo\n"
+        + "public class Shell {\n"
+        + "}\n";
+
+    // When it is compiled
+    List<String> errors = compile("test.Shell", source);
+
+    // Then it fails without generating anything
+    assertEquals(1, errors.size());
+    assertTrue(errors.get(0), errors.get(0).contains("must implement dev.aclam.basemodel.BaseModel"));
+    assertFalse(new File(mFolder.getRoot(), "test/Shell_Repository.java").exists());
+  }
+
+  @Test
+  public void process_reportsError_whenGeneric() {
+    // Given a generic model
+    String source = "package test;\n"
+        + "@dev.aclam.annotation.Repo\n"
+        + "public class Shell<T> implements dev.aclam.basemodel.BaseModel {\n"
+        + "  public String getUuid() { return \"uid\"; }\n"
+        + "}\n";
+
+    // When it is compiled
+    List<String> errors = compile("test.Shell", source);
+
+    // Then it fails without generating anything
+    assertEquals(1, errors.size());
+    assertTrue(errors.get(0), errors.get(0).contains("must not be generic"));
+    assertFalse(new File(mFolder.getRoot(), "test/Shell_Repository.java").exists());
+  }
+
+  @Test
+  public void process_ignoresQualifierUsage() {
+    // Given @Repo used as a qualifier on a parameter
+    String source = "package test;\n"
+        + "public class Shells {\n"
+        + "  Shells(@dev.aclam.annotation.Repo Object repository) {\n"
+        + "  }\n"
+        + "}\n";
+
+    // When it is compiled
+    List<String> errors = compile("test.Shells", source);
+
+    // Then nothing is reported or generated
+    assertEquals(Collections.emptyList(), errors);
+    assertFalse(new File(mFolder.getRoot(), "test/Shells_Repository.java").exists());
+    assertFalse(new File(mFolder.getRoot(), "test/Object_Repository.java").exists());
+  }
+
+  /**
+   * Compiles the source with the processor, generated sources and classes go to the temporary
+   * folder
+   * @return the error messages
+   */
+  private List<String> compile(String className, String source) {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    String output = mFolder.getRoot().getAbsolutePath();
+    List<String> options = Arrays.asList(
+        "-classpath", System.getProperty("java.class.path"),
+        "-d", output,
+        "-s", output);
+    JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null,
+        Collections.singletonList(new Source(className, source)));
+    task.setProcessors(Collections.singletonList(new RepositoryProcessor()));
+    task.call();
+
+    List<String> errors = new ArrayList<>();
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+      if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+        errors.add(diagnostic.getMessage(Locale.ROOT));
+      }
+    }
+    return errors;
+  }
+
+  private static class Source extends SimpleJavaFileObject {
+
+    private final String mSource;
+
+    Source(String className, String source) {
+      super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension),
+          Kind.SOURCE);
+      mSource = source;
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+      return mSource;
+    }
+  }
+}